@@ -0,0 +1,211 @@
+package com.freshollie.headunitcontroller.services;
+
+import android.annotation.SuppressLint;
+import android.app.Service;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.media.MediaPlayer;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.PowerManager;
+import android.preference.PreferenceManager;
+import android.support.v4.content.ContextCompat;
+import android.util.Log;
+
+import com.freshollie.headunitcontroller.R;
+import com.freshollie.headunitcontroller.services.controllers.PlaybackController;
+import com.freshollie.headunitcontroller.services.controllers.PowerStateMachine;
+import com.freshollie.headunitcontroller.services.input.DeviceInputManager;
+import com.freshollie.headunitcontroller.util.DeviceProtectedPreferences;
+import com.freshollie.headunitcontroller.util.Logger;
+import com.freshollie.headunitcontroller.util.NotificationHandler;
+import com.freshollie.headunitcontroller.util.PowerUtil;
+import com.freshollie.headunitcontroller.util.SuperuserManager;
+
+/**
+ * Starts the parts of the wake routine which don't need credential encrypted storage as
+ * soon as the device has booted, before the user is unlocked: the wakelock, blank audio,
+ * the volume and the input connection. Their preferences are read from the device
+ * protected mirror.
+ *
+ * Runs in the foreground, as the boot broadcast only lets a background service run for a
+ * short time, and the user may not unlock for a while. Power broadcasts are debounced the
+ * same way as in MainService, so the engine cranking just after boot doesn't tear the
+ * early routine down and start it again.
+ *
+ * Once the user is unlocked, MainService runs the full routine and stops this service,
+ * which hands the wakelock, audio and input over to it.
+ */
+public class EarlyBootService extends Service {
+    private static final String TAG = EarlyBootService.class.getSimpleName();
+
+    private Context storageContext;
+    private SharedPreferences sharedPreferences;
+
+    private PowerManager.WakeLock wakeLock;
+    private MediaPlayer mediaPlayer;
+    private DeviceInputManager deviceInputManager;
+
+    private PowerStateMachine powerStateMachine;
+
+    private boolean started = false;
+
+    private final BroadcastReceiver powerReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            powerStateMachine.onPowerEvent(
+                    Intent.ACTION_POWER_CONNECTED.equals(intent.getAction())
+            );
+        }
+    };
+
+    @Override
+    public void onCreate() {
+        storageContext = DeviceProtectedPreferences.getContext(this);
+        sharedPreferences = PreferenceManager.getDefaultSharedPreferences(storageContext);
+
+        powerStateMachine = new PowerStateMachine(
+                storageContext,
+                new Handler(getMainLooper()),
+                new PowerStateMachine.OnPowerStateChangedListener() {
+                    @Override
+                    public void onPowerConnected() {
+                        if (!started) {
+                            started = true;
+                            Logger.log(TAG, "Early start before unlock");
+                            startEarlyRoutine();
+                        }
+                    }
+
+                    @Override
+                    public void onPowerDisconnected() {
+                        Logger.log(TAG, "Power lost before unlock");
+                        stopSelf();
+                    }
+
+                    @Override
+                    public void onFlapIgnored(boolean connected) {}
+                }
+        );
+
+        IntentFilter powerFilter = new IntentFilter(Intent.ACTION_POWER_CONNECTED);
+        powerFilter.addAction(Intent.ACTION_POWER_DISCONNECTED);
+        registerReceiver(powerReceiver, powerFilter);
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        // Started as a foreground service, so we must always go into the foreground
+        startForeground(
+                NotificationHandler.EARLY_BOOT_NOTIFICATION_ID,
+                new NotificationHandler(storageContext).buildServiceNotification(
+                        getString(R.string.notify_waiting_for_unlock)
+                )
+        );
+
+        if (intent == null) {
+            stopSelf();
+            return START_NOT_STICKY;
+        }
+
+        powerStateMachine.onPowerEvent(PowerUtil.isConnected(storageContext));
+
+        return START_NOT_STICKY;
+    }
+
+    @SuppressLint("WakelockTimeout")
+    private void startEarlyRoutine() {
+        if (sharedPreferences.getBoolean(getString(R.string.pref_wakelock_key), true)) {
+            PowerManager powerManager = (PowerManager) getSystemService(POWER_SERVICE);
+            wakeLock = powerManager.newWakeLock(PowerManager.SCREEN_BRIGHT_WAKE_LOCK, TAG);
+            wakeLock.acquire();
+        }
+
+        if (sharedPreferences.getBoolean(getString(R.string.pref_blank_audio_key), true)) {
+            mediaPlayer = MediaPlayer.create(storageContext, R.raw.blank);
+            if (mediaPlayer != null) {
+                mediaPlayer.setLooping(true);
+                mediaPlayer.start();
+            }
+        }
+
+        if (!sharedPreferences.getBoolean(getString(R.string.pref_debug_enabled_key), false) &&
+                sharedPreferences.getBoolean(getString(R.string.pref_set_volume_key), true)) {
+            PlaybackController.raiseVolume(storageContext, sharedPreferences);
+        }
+
+        if (sharedPreferences.getBoolean(
+                getString(R.string.pref_input_service_enabled_key), true)) {
+            // Root decides how the keys are injected, so find out first
+            SuperuserManager.getInstance().request(new SuperuserManager.permissionListener() {
+                @Override
+                public void onGranted() {
+                    startInput();
+                }
+
+                @Override
+                public void onDenied() {
+                    startInput();
+                }
+            });
+        }
+    }
+
+    private void startInput() {
+        new Handler(getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                if (started && deviceInputManager == null) {
+                    deviceInputManager = new DeviceInputManager(storageContext);
+                    deviceInputManager.start();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void onDestroy() {
+        Log.d(TAG, "Handing over");
+        started = false;
+
+        powerStateMachine.cancel();
+        unregisterReceiver(powerReceiver);
+
+        if (deviceInputManager != null) {
+            deviceInputManager.destroy();
+            deviceInputManager = null;
+        }
+
+        if (mediaPlayer != null) {
+            mediaPlayer.stop();
+            mediaPlayer.release();
+            mediaPlayer = null;
+        }
+
+        if (wakeLock != null) {
+            wakeLock.release();
+            wakeLock = null;
+        }
+
+        stopForeground(true);
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    public static void start(Context context, String action) {
+        ContextCompat.startForegroundService(
+                context,
+                new Intent(context, EarlyBootService.class).setAction(action)
+        );
+    }
+
+    public static void stop(Context context) {
+        context.stopService(new Intent(context, EarlyBootService.class));
+    }
+}
@@ -0,0 +1,229 @@
+package com.freshollie.headunitcontroller.services;
+
+import android.accessibilityservice.AccessibilityService;
+import android.accessibilityservice.GestureDescription;
+import android.annotation.TargetApi;
+import android.content.Intent;
+import android.graphics.Path;
+import android.os.Build;
+import android.util.DisplayMetrics;
+import android.util.Log;
+import android.view.KeyEvent;
+import android.view.View;
+import android.view.accessibility.AccessibilityEvent;
+import android.view.accessibility.AccessibilityNodeInfo;
+
+import com.freshollie.headunitcontroller.util.Logger;
+
+/**
+ * Performs the equivalent of key events for units which can't be rooted. Navigation
+ * keys become global actions, the dpad moves and clicks the focused view, and page up
+ * and down become swipes.
+ *
+ * The service only exists while it is enabled in the accessibility settings.
+ */
+public class InputAccessibilityService extends AccessibilityService {
+    private static final String TAG = InputAccessibilityService.class.getSimpleName();
+
+    private static final int SWIPE_DURATION = 150; // Milliseconds
+
+    private static volatile InputAccessibilityService INSTANCE;
+
+    /**
+     * @return the connected service, or null if it is not enabled
+     */
+    public static InputAccessibilityService getInstance() {
+        return INSTANCE;
+    }
+
+    @Override
+    protected void onServiceConnected() {
+        super.onServiceConnected();
+        INSTANCE = this;
+        Logger.log(TAG, "Connected");
+    }
+
+    @Override
+    public boolean onUnbind(Intent intent) {
+        INSTANCE = null;
+        Logger.log(TAG, "Disconnected");
+        return super.onUnbind(intent);
+    }
+
+    @Override
+    public void onDestroy() {
+        INSTANCE = null;
+        super.onDestroy();
+    }
+
+    @Override
+    public void onAccessibilityEvent(AccessibilityEvent event) {
+    }
+
+    @Override
+    public void onInterrupt() {
+    }
+
+    public static boolean canPerformKey(int keyCode) {
+        switch (keyCode) {
+            case KeyEvent.KEYCODE_BACK:
+            case KeyEvent.KEYCODE_HOME:
+            case KeyEvent.KEYCODE_APP_SWITCH:
+            case KeyEvent.KEYCODE_NOTIFICATION:
+            case KeyEvent.KEYCODE_DPAD_UP:
+            case KeyEvent.KEYCODE_DPAD_DOWN:
+            case KeyEvent.KEYCODE_DPAD_LEFT:
+            case KeyEvent.KEYCODE_DPAD_RIGHT:
+            case KeyEvent.KEYCODE_TAB:
+            case KeyEvent.KEYCODE_DPAD_CENTER:
+            case KeyEvent.KEYCODE_ENTER:
+                return true;
+
+            case KeyEvent.KEYCODE_PAGE_UP:
+            case KeyEvent.KEYCODE_PAGE_DOWN:
+                return Build.VERSION.SDK_INT >= Build.VERSION_CODES.N;
+        }
+
+        return false;
+    }
+
+    /**
+     * Perform the equivalent of the given key
+     *
+     * @return false if the key could not be performed
+     */
+    public boolean performKey(int keyCode) {
+        switch (keyCode) {
+            case KeyEvent.KEYCODE_BACK:
+                return performGlobalAction(GLOBAL_ACTION_BACK);
+
+            case KeyEvent.KEYCODE_HOME:
+                return performGlobalAction(GLOBAL_ACTION_HOME);
+
+            case KeyEvent.KEYCODE_APP_SWITCH:
+                return performGlobalAction(GLOBAL_ACTION_RECENTS);
+
+            case KeyEvent.KEYCODE_NOTIFICATION:
+                return performGlobalAction(GLOBAL_ACTION_NOTIFICATIONS);
+
+            case KeyEvent.KEYCODE_DPAD_UP:
+                return moveFocus(View.FOCUS_UP);
+
+            case KeyEvent.KEYCODE_DPAD_DOWN:
+                return moveFocus(View.FOCUS_DOWN);
+
+            case KeyEvent.KEYCODE_DPAD_LEFT:
+                return moveFocus(View.FOCUS_LEFT);
+
+            case KeyEvent.KEYCODE_DPAD_RIGHT:
+                return moveFocus(View.FOCUS_RIGHT);
+
+            case KeyEvent.KEYCODE_TAB:
+                return moveFocus(View.FOCUS_FORWARD);
+
+            case KeyEvent.KEYCODE_DPAD_CENTER:
+            case KeyEvent.KEYCODE_ENTER:
+                return clickFocused();
+
+            case KeyEvent.KEYCODE_PAGE_UP:
+            case KeyEvent.KEYCODE_PAGE_DOWN:
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+                    return swipe(keyCode == KeyEvent.KEYCODE_PAGE_DOWN);
+                }
+                break;
+        }
+
+        return false;
+    }
+
+    private AccessibilityNodeInfo findFocused() {
+        AccessibilityNodeInfo focused = findFocus(AccessibilityNodeInfo.FOCUS_INPUT);
+        if (focused == null) {
+            focused = findFocus(AccessibilityNodeInfo.FOCUS_ACCESSIBILITY);
+        }
+        return focused;
+    }
+
+    private boolean moveFocus(int direction) {
+        AccessibilityNodeInfo focused = findFocused();
+
+        if (focused == null) {
+            // Nothing has focus yet, so focus the first thing we can
+            AccessibilityNodeInfo root = getRootInActiveWindow();
+            if (root == null) {
+                return false;
+            }
+
+            AccessibilityNodeInfo first = root.focusSearch(View.FOCUS_FORWARD);
+            root.recycle();
+
+            if (first == null) {
+                return false;
+            }
+
+            boolean focusedFirst = first.performAction(AccessibilityNodeInfo.ACTION_FOCUS);
+            first.recycle();
+            return focusedFirst;
+        }
+
+        AccessibilityNodeInfo next = focused.focusSearch(direction);
+        focused.recycle();
+
+        if (next == null) {
+            return false;
+        }
+
+        boolean moved = next.performAction(AccessibilityNodeInfo.ACTION_FOCUS) ||
+                next.performAction(AccessibilityNodeInfo.ACTION_ACCESSIBILITY_FOCUS);
+        next.recycle();
+        return moved;
+    }
+
+    private boolean clickFocused() {
+        AccessibilityNodeInfo node = findFocused();
+
+        // The focused view may be inside the clickable view
+        while (node != null && !node.isClickable()) {
+            AccessibilityNodeInfo parent = node.getParent();
+            node.recycle();
+            node = parent;
+        }
+
+        if (node == null) {
+            Log.d(TAG, "Nothing focused to click");
+            return false;
+        }
+
+        boolean clicked = node.performAction(AccessibilityNodeInfo.ACTION_CLICK);
+        node.recycle();
+        return clicked;
+    }
+
+    /**
+     * Swipe vertically across the middle of the screen, scrolling by about a page
+     */
+    @TargetApi(Build.VERSION_CODES.N)
+    private boolean swipe(boolean down) {
+        DisplayMetrics displayMetrics = getResources().getDisplayMetrics();
+        float x = displayMetrics.widthPixels / 2f;
+        float top = displayMetrics.heightPixels * 0.25f;
+        float bottom = displayMetrics.heightPixels * 0.75f;
+
+        Path path = new Path();
+        if (down) {
+            path.moveTo(x, bottom);
+            path.lineTo(x, top);
+        } else {
+            path.moveTo(x, top);
+            path.lineTo(x, bottom);
+        }
+
+        return dispatchGesture(
+                new GestureDescription.Builder()
+                        .addStroke(new GestureDescription.StrokeDescription(path, 0, SWIPE_DURATION))
+                        .build(),
+                null,
+                null
+        );
+    }
+}
@@ -22,6 +22,7 @@ import android.widget.Toast;
 
 import com.freshollie.headunitcontroller.R;
 import com.freshollie.headunitcontroller.SettingsActivity;
+import com.freshollie.headunitcontroller.util.DeviceProtectedPreferences;
 import com.freshollie.headunitcontroller.util.NotificationHandler;
 import com.freshollie.headunitcontroller.util.PowerUtil;
 import com.freshollie.headunitcontroller.util.Logger;
@@ -29,6 +30,7 @@ import com.freshollie.headunitcontroller.util.SuperuserManager;
 import com.freshollie.headunitcontroller.services.controllers.MainController;
 
 import java.io.IOException;
+import java.util.ArrayList;
 
 import static android.content.Intent.FLAG_ACTIVITY_NEW_TASK;
 import static android.content.Intent.FLAG_ACTIVITY_NO_HISTORY;
@@ -47,6 +49,8 @@ public class MainService extends Service implements
             "com.freshollie.headunitcontroller.action.SU_NOT_GRANTED";
     public static String ACTION_START_INPUT_SERVICE =
             "com.freshollie.headunitcontroller.action.ACTION_START_INPUT_SERVICE";
+    private static final String ACTION_RESTARTED =
+            "com.freshollie.headunitcontroller.action.RESTARTED";
     private static String NOTIFICATION_LISTENER_SETTINGS_ACTION =
             "android.settings.ACTION_NOTIFICATION_LISTENER_SETTINGS";
     private static String ENABLED_NOTIFICATION_LISTENERS_KEY =
@@ -64,21 +68,42 @@ public class MainService extends Service implements
     private ContentObserver notificationListeningSettingsObserver;
     private AppOpsManager.OnOpChangedListener usagePermissionChangeListener;
 
+    private Handler mainThread;
+
+    // Cached permission checks, null until checked and cleared when the permission changes
+    private Boolean listeningPermission;
+    private Boolean usageStatsPermission;
+
+    // Intents to run again once the superuser request has an answer
+    private final ArrayList<Intent> intentsWaitingForSu = new ArrayList<>();
+    private boolean suRequestPending = false;
+
     @Override
     public void onCreate() {
         Log.d(TAG, "Started");
         superuserManager = SuperuserManager.getInstance();
+        mainThread = new Handler(getMainLooper());
+
+        // Spawning su is slow, so start the request while everything else is set up
+        if (!superuserManager.hasPermission()) {
+            requestSuperuser(null);
+        }
+
         notificationHandler = new NotificationHandler(getApplicationContext());
         mainController = new MainController(getApplicationContext());
         mediaMonitor = new MediaMonitor(getApplicationContext());
 
         sharedPreferences =  PreferenceManager.getDefaultSharedPreferences(this);
         sharedPreferences.registerOnSharedPreferenceChangeListener(this);
+
+        // Keep the preferences used before unlock up to date
+        DeviceProtectedPreferences.mirror(this);
         appOpsManager = (AppOpsManager) getSystemService(APP_OPS_SERVICE);
 
         notificationListeningSettingsObserver = new ContentObserver(new Handler(getMainLooper())) {
             @Override
             public void onChange(boolean selfChange, Uri uri) {
+                listeningPermission = null;
                 if (haveListeningPermission()) {
                     startActivity(
                             new Intent(getApplicationContext(), SettingsActivity.class)
@@ -100,6 +125,7 @@ public class MainService extends Service implements
         usagePermissionChangeListener = new AppOpsManager.OnOpChangedListener() {
             @Override
             public void onOpChanged(String s, String s1) {
+                usageStatsPermission = null;
                 if (haveUsageStatsPermission()) {
                     startActivity(
                             new Intent(getApplicationContext(), SettingsActivity.class)
@@ -141,6 +167,10 @@ public class MainService extends Service implements
         if (preference.equals(getString(R.string.pref_screen_orientation_key))) {
             setGlobalScreenOrientation(sharedPreferences.getString(preference, "4"));
         }
+
+        if (DeviceProtectedPreferences.isMirrored(this, preference)) {
+            DeviceProtectedPreferences.mirror(this);
+        }
     }
 
     private void setGlobalScreenOrientation(String orientationPref) {
@@ -177,10 +207,24 @@ public class MainService extends Service implements
         stopWithStatus(getString(R.string.notify_no_usage_stats_permission));
     }
 
+    private boolean haveListeningPermission() {
+        if (listeningPermission == null) {
+            listeningPermission = checkListeningPermission();
+        }
+        return listeningPermission;
+    }
+
+    private boolean haveUsageStatsPermission() {
+        if (usageStatsPermission == null) {
+            usageStatsPermission = checkUsageStatsPermission();
+        }
+        return usageStatsPermission;
+    }
+
     /**
      * Checks for notification listening permission for this app
      */
-    private boolean haveListeningPermission() {
+    private boolean checkListeningPermission() {
         String enabledNotificationListeners =
                 Settings.Secure.getString(getContentResolver(), ENABLED_NOTIFICATION_LISTENERS_KEY);
 
@@ -192,7 +236,7 @@ public class MainService extends Service implements
      * Checks for usage stats permission for this app
      * @return
      */
-    private boolean haveUsageStatsPermission() {
+    private boolean checkUsageStatsPermission() {
 
         int mode = appOpsManager.checkOpNoThrow(
                 AppOpsManager.OPSTR_GET_USAGE_STATS,
@@ -203,45 +247,46 @@ public class MainService extends Service implements
     }
 
     @Override
-    public int onStartCommand(final Intent intent, final int flags, final int startId) {
+    public int onStartCommand(Intent startIntent, final int flags, final int startId) {
+        // We are sticky, so we are restarted without an intent if the process was killed
+        if (startIntent == null) {
+            Logger.log(TAG, "Restarted after being killed");
+            startIntent = new Intent(this, MainService.class).setAction(ACTION_RESTARTED);
+        }
+
+        final Intent intent = startIntent;
         Log.d(TAG, "Received run intent: " + intent.getAction());
-        
+
         if (ACTION_SU_NOT_GRANTED.equals(intent.getAction())) {
             Logger.log(TAG, "Superuser not granted");
+            mainController.cancelPowerConnectedEarly();
             stopWithStatus(getString(R.string.notify_su_not_granted_closing));
             return START_NOT_STICKY;
         }
 
+        // The wakelock and blank audio need no permissions, so don't wait for the checks
+        if (Intent.ACTION_POWER_CONNECTED.equals(intent.getAction()) ||
+                (Intent.ACTION_BOOT_COMPLETED.equals(intent.getAction()) &&
+                        PowerUtil.isConnected(this))) {
+            mainController.onPowerConnectedEarly();
+        }
+
         if (!haveListeningPermission()) {
             Logger.log(TAG, "No listening permission");
+            mainController.cancelPowerConnectedEarly();
             informNoListeningPermission();
             return START_NOT_STICKY;
         }
 
         if (!haveUsageStatsPermission()) {
             Logger.log(TAG, "Notifying no usage permission");
+            mainController.cancelPowerConnectedEarly();
             informNoUsageStatsPermission();
             return START_NOT_STICKY;
         }
 
         if (!superuserManager.hasPermission()) {
-            Logger.log(TAG, "Requesting SU permission");
-
-            superuserManager.request(new SuperuserManager.permissionListener() {
-                @Override
-                public void onGranted() {
-                    Logger.log(TAG, "SU permission granted");
-                    startService(intent);
-                }
-
-                @Override
-                public void onDenied() {
-                    Logger.log(TAG, "SU permission denied");
-                    intent.setAction(ACTION_SU_NOT_GRANTED);
-                    startService(intent);
-                }
-            });
-
+            requestSuperuser(intent);
         } else {
             if (intent.getAction() != null) {
                 if (ACTION_START_INPUT_SERVICE.equals(intent.getAction())) {
@@ -277,12 +322,73 @@ public class MainService extends Service implements
                         case Intent.ACTION_POWER_DISCONNECTED:
                             mainController.onPowerDisconnected();
                             break;
+
+                        case ACTION_RESTARTED:
+                            mainController.onRestarted();
+                            break;
                     }
+
+                    // The main routine has taken over from the early boot routine
+                    EarlyBootService.stop(this);
                 }
             }
         }
 
-        return START_NOT_STICKY;
+        return START_STICKY;
+    }
+
+    /**
+     * Request superuser, or join the request already running, and run the waiting intent
+     * again once there is an answer
+     */
+    private void requestSuperuser(Intent waitingIntent) {
+        if (waitingIntent != null) {
+            intentsWaitingForSu.add(waitingIntent);
+        }
+
+        if (suRequestPending) {
+            return;
+        }
+
+        Logger.log(TAG, "Requesting SU permission");
+        suRequestPending = true;
+
+        superuserManager.request(new SuperuserManager.permissionListener() {
+            @Override
+            public void onGranted() {
+                mainThread.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        Logger.log(TAG, "SU permission granted");
+                        suRequestPending = false;
+
+                        for (Intent intent: intentsWaitingForSu) {
+                            startService(intent);
+                        }
+                        intentsWaitingForSu.clear();
+                    }
+                });
+            }
+
+            @Override
+            public void onDenied() {
+                mainThread.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        Logger.log(TAG, "SU permission denied");
+                        suRequestPending = false;
+
+                        // Only needs saying once
+                        if (!intentsWaitingForSu.isEmpty()) {
+                            Intent intent = intentsWaitingForSu.get(0);
+                            intent.setAction(ACTION_SU_NOT_GRANTED);
+                            startService(intent);
+                        }
+                        intentsWaitingForSu.clear();
+                    }
+                });
+            }
+        });
     }
 
     @Override
@@ -328,6 +434,25 @@ public class MainService extends Service implements
          */
         @Override
         public void onReceive(Context context, Intent intent) {
+            if (!DeviceProtectedPreferences.isUserUnlocked(context)) {
+                // Only the early routine can run until the user is unlocked. It debounces
+                // power being lost itself, so it isn't started just to be told that.
+                if (!Intent.ACTION_POWER_DISCONNECTED.equals(intent.getAction()) &&
+                        PowerUtil.isConnected(context)) {
+                    EarlyBootService.start(context, intent.getAction());
+                }
+                return;
+            }
+
+            if (Intent.ACTION_LOCKED_BOOT_COMPLETED.equals(intent.getAction())) {
+                // Already unlocked, so boot completed will follow
+                return;
+            }
+
+            if (Intent.ACTION_BOOT_COMPLETED.equals(intent.getAction())) {
+                MainController.onBootCompleted(context);
+            }
+
             Intent startIntent = new Intent(context, MainService.class);
             startIntent.setAction(intent.getAction()); // Let the service know why it was started
 
@@ -14,6 +14,7 @@ import android.util.Log;
 import com.freshollie.headunitcontroller.R;
 import com.freshollie.headunitcontroller.util.PowerUtil;
 import com.freshollie.headunitcontroller.util.Logger;
+import com.freshollie.headunitcontroller.util.Tracer;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -114,6 +115,9 @@ public class MediaMonitor extends MediaController.Callback implements
             if (playbackState != null) {
                 if (playbackState.getState() == PlaybackState.STATE_PLAYING) {
                     mediaControllerActive = true;
+                    Tracer.getInstance().instant(
+                            "Media playing " + activeMediaController.getPackageName()
+                    );
                     mainThread.removeCallbacks(runnableSetNoPlayback);
                     saveCurrentActiveMediaApp(activeMediaController.getPackageName());
                     break;
@@ -0,0 +1,122 @@
+package com.freshollie.headunitcontroller.services.controllers;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.freshollie.headunitcontroller.util.Logger;
+import com.freshollie.headunitcontroller.util.SuperuserManager;
+
+/**
+ * Launches Autobright through su and checks that its service actually started. If it
+ * loses the race against boot, starting the service is retried with a backoff until the
+ * deadline, so the screen doesn't stay dim for the whole drive. The activity is only run
+ * once, as running it again would bring it back over the navigation app.
+ *
+ * This blocks while it waits, so it should be run on a worker thread.
+ */
+class AutobrightLauncher {
+    private static final String TAG = AutobrightLauncher.class.getSimpleName();
+
+    private static final String AUTOBRIGHT_PACKAGE = "com.autobright.kevinforeman.autobright";
+    private static final String AUTOBRIGHT_SERVICE = AUTOBRIGHT_PACKAGE + ".AutoBrightService";
+
+    private static final String AUTOBRIGHT_SERVICE_START_COMMAND =
+            "am startservice " +
+                    "-a android.intent.action.MAIN " +
+                    "-n com.autobright.kevinforeman.autobright/.AutoBrightService";
+
+    private static final String AUTOBRIGHT_ACTIVITY_RUN_COMMAND =
+            "am run " +
+                    "-a android.intent.action.MAIN " +
+                    "-n com.autobright.kevinforeman.autobright/.AutoBright";
+
+    // Time to wait after each attempt before checking the service, the last is repeated
+    private static final int[] RETRY_BACKOFF = new int[] {500, 1000, 2000}; // Milliseconds
+    private static final int LAUNCH_DEADLINE = 10000; // Milliseconds
+
+    private final ActivityManager activityManager;
+    private final SuperuserManager superuserManager;
+
+    AutobrightLauncher(Context context) {
+        activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        superuserManager = SuperuserManager.getInstance();
+    }
+
+    /**
+     * Since Android 8 we can only see our own services, so the launch can't be verified
+     */
+    private static boolean canVerify() {
+        return Build.VERSION.SDK_INT < Build.VERSION_CODES.O;
+    }
+
+    @SuppressWarnings("deprecation")
+    private boolean isServiceRunning() {
+        for (ActivityManager.RunningServiceInfo service:
+                activityManager.getRunningServices(Integer.MAX_VALUE)) {
+            if (AUTOBRIGHT_SERVICE.equals(service.service.getClassName())) {
+                return service.started;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Launch Autobright, and wait until its service is running
+     *
+     * @return true if the service is running
+     */
+    boolean launch() {
+        if (!superuserManager.hasPermission()) {
+            Logger.log(TAG, "StartUp: Can't start Autobright without root");
+            return false;
+        }
+
+        long startTime = SystemClock.elapsedRealtime();
+
+        if (canVerify() && isServiceRunning()) {
+            Logger.log(TAG, "StartUp: Autobright already running");
+            return true;
+        }
+
+        int attempt = 0;
+        while (true) {
+            superuserManager.execute(AUTOBRIGHT_SERVICE_START_COMMAND);
+
+            if (attempt == 0) {
+                superuserManager.execute(AUTOBRIGHT_ACTIVITY_RUN_COMMAND);
+            }
+
+            if (!canVerify()) {
+                Logger.log(TAG, "StartUp: Autobright launched, can't verify on this version");
+                return true;
+            }
+
+            long remaining = LAUNCH_DEADLINE - (SystemClock.elapsedRealtime() - startTime);
+            SystemClock.sleep(Math.max(0, Math.min(remaining, getBackoff(attempt))));
+            attempt++;
+
+            long elapsed = SystemClock.elapsedRealtime() - startTime;
+
+            if (isServiceRunning()) {
+                Logger.log(TAG, "StartUp: Autobright running after " + elapsed + "ms, " +
+                        attempt + (attempt == 1 ? " attempt" : " attempts"));
+                return true;
+            }
+
+            if (elapsed >= LAUNCH_DEADLINE) {
+                Logger.log(TAG, "StartUp: Autobright failed to start after " + elapsed + "ms, " +
+                        attempt + " attempts");
+                return false;
+            }
+
+            Log.d(TAG, "Autobright not running yet, retrying");
+        }
+    }
+
+    private static int getBackoff(int attempt) {
+        return RETRY_BACKOFF[Math.min(attempt, RETRY_BACKOFF.length - 1)];
+    }
+}
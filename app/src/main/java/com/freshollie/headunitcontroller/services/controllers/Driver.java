@@ -0,0 +1,79 @@
+package com.freshollie.headunitcontroller.services.controllers;
+
+/**
+ * Something which is started on wake, once the USB device it depends on has attached.
+ * Each driver waits for its own device, so a driver never waits on hardware
+ * it doesn't use.
+ */
+abstract class Driver {
+    /**
+     * The driver doesn't need any device, and is started straight away
+     */
+    static final int DEPENDS_ON_NOTHING = 0;
+
+    /**
+     * The driver waits for the device returned by getDeviceId()
+     */
+    static final int DEPENDS_ON_DEVICE = 1;
+
+    /**
+     * The driver doesn't know which device it needs, so it waits for every
+     * device in the USB inventory
+     */
+    static final int DEPENDS_ON_ALL_DEVICES = 2;
+
+    interface ReadyCallback {
+        /**
+         * Called by the driver once it is up and running. Can be called from any thread.
+         */
+        void onReady();
+    }
+
+    private final String name;
+    private final long attachTimeout;
+
+    Driver(String name, long attachTimeout) {
+        this.name = name;
+        this.attachTimeout = attachTimeout;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    /**
+     * @return milliseconds to wait for the device before starting the driver anyway
+     */
+    long getAttachTimeout() {
+        return attachTimeout;
+    }
+
+    /**
+     * Checked on every wake, as the dependency may come from the preferences
+     */
+    int getDependency() {
+        return DEPENDS_ON_NOTHING;
+    }
+
+    /**
+     * @return the device the driver depends on, see UsbAttachWaiter.getDeviceId()
+     */
+    int getDeviceId() {
+        return UsbAttachWaiter.NO_DEVICE;
+    }
+
+    /**
+     * Drivers are started on a worker thread, so they can block while starting,
+     * unless they need to be started on the main thread
+     */
+    boolean startsOnMainThread() {
+        return false;
+    }
+
+    abstract boolean isEnabled();
+
+    /**
+     * Start the driver, and call the callback once it is ready
+     */
+    abstract void start(ReadyCallback readyCallback);
+}
@@ -0,0 +1,400 @@
+package com.freshollie.headunitcontroller.services.controllers;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import com.freshollie.headunitcontroller.R;
+import com.freshollie.headunitcontroller.util.Logger;
+import com.freshollie.headunitcontroller.util.Tracer;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Starts the drivers on wake. Each driver waits for its own device and is then started
+ * on a worker pool, so drivers which block while starting don't hold up the others.
+ *
+ * Drivers which don't know which device they need wait for the USB inventory instead,
+ * which is every device seen on recent wakes, or the number of devices set in the
+ * preferences if there hasn't been one yet. If the inventory doesn't all attach, the
+ * missing devices are logged. The inventory is saved from every device seen up to the
+ * report timeout, so a device which is only slow to attach is still waited for next wake.
+ *
+ * The time each driver's device attached, and it was started and became ready, is
+ * recorded from the start of the wake. Once every driver is ready, or the report timeout
+ * passes, a one line timing report is logged so we can see which driver held up wake.
+ */
+class DriverOrchestrator {
+    private static final String TAG = DriverOrchestrator.class.getSimpleName();
+
+    private static final int INVENTORY_ATTACH_TIMEOUT = 3000; // Milliseconds
+
+    private static final int REPORT_TIMEOUT = 20000; // Milliseconds
+
+    private static final int NOT_YET = -1;
+
+    /**
+     * Timings of one driver during a wake, in milliseconds from the start of the wake
+     */
+    private static class DriverRun {
+        final Driver driver;
+        long attachedAt = NOT_YET;
+        long startedAt = NOT_YET;
+        long readyAt = NOT_YET;
+        boolean attachTimedOut = false;
+
+        boolean started = false;
+        final ArrayList<Runnable> startedCallbacks = new ArrayList<>();
+
+        DriverRun(Driver driver) {
+            this.driver = driver;
+        }
+    }
+
+    private final Context context;
+    private final Handler mainThread;
+    private final SharedPreferences sharedPreferences;
+    private final UsbAttachWaiter usbAttachWaiter;
+    private final UsbInventory usbInventory;
+    private final ExecutorService startPool = Executors.newCachedThreadPool();
+
+    private DriverRun[] runs = new DriverRun[0];
+    private long wakeStartTime;
+    private boolean reported = true;
+
+    // Drivers waiting for all of the devices in the inventory
+    private final ArrayList<UsbAttachWaiter.OnAttachedListener> inventoryListeners =
+            new ArrayList<>();
+    private boolean inventoryAttached = false;
+    private boolean inventoryTimedOut = false;
+
+    private final Runnable reportTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            report();
+        }
+    };
+
+    private final Runnable saveInventoryRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Log.d(TAG, "Saved USB inventory: " + usbInventory.saveSnapshot());
+        }
+    };
+
+    DriverOrchestrator(Context context, Handler mainThread) {
+        this.context = context;
+        this.mainThread = mainThread;
+        sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+        usbAttachWaiter = new UsbAttachWaiter(context, mainThread);
+        usbInventory = new UsbInventory(context);
+    }
+
+    /**
+     * Start all of the enabled drivers. Must be called on the main thread.
+     */
+    void start(Driver[] drivers) {
+        cancel();
+
+        wakeStartTime = SystemClock.elapsedRealtime();
+        reported = false;
+
+        int numEnabled = 0;
+        for (Driver driver: drivers) {
+            if (driver.isEnabled()) {
+                numEnabled++;
+            }
+        }
+
+        runs = new DriverRun[numEnabled];
+
+        int i = 0;
+        for (Driver driver: drivers) {
+            if (driver.isEnabled()) {
+                runs[i] = new DriverRun(driver);
+                i++;
+            }
+        }
+
+        mainThread.postDelayed(reportTimeoutRunnable, REPORT_TIMEOUT);
+
+        // Only a wake which lasts the whole window is saved, so a wake cut short
+        // doesn't count against the devices which hadn't attached yet
+        usbInventory.startWake();
+        mainThread.postDelayed(saveInventoryRunnable, REPORT_TIMEOUT);
+
+        awaitInventory();
+
+        for (DriverRun run: runs) {
+            startWhenAttached(run);
+        }
+
+        checkAllReady();
+    }
+
+    /**
+     * Stop waiting for devices, so no more drivers are started
+     */
+    void cancel() {
+        usbAttachWaiter.cancel();
+        inventoryListeners.clear();
+
+        for (DriverRun run: runs) {
+            run.startedCallbacks.clear();
+        }
+        mainThread.removeCallbacks(reportTimeoutRunnable);
+        mainThread.removeCallbacks(saveInventoryRunnable);
+
+        if (!reported && runs.length > 0) {
+            Log.d(TAG, "Cancelled before all drivers were ready");
+            report();
+        }
+    }
+
+    void destroy() {
+        cancel();
+        startPool.shutdown();
+    }
+
+    /**
+     * Run the callback on the main thread once the named driver has been started, or
+     * straight away if it isn't being started this wake. Must be called on the main thread.
+     */
+    void whenStarted(String driverName, Runnable callback) {
+        for (DriverRun run: runs) {
+            if (run.driver.getName().equals(driverName) && !run.started) {
+                run.startedCallbacks.add(callback);
+                return;
+            }
+        }
+
+        callback.run();
+    }
+
+    private void onStarted(DriverRun run) {
+        run.started = true;
+
+        for (Runnable callback: run.startedCallbacks) {
+            callback.run();
+        }
+        run.startedCallbacks.clear();
+    }
+
+    private long now() {
+        return SystemClock.elapsedRealtime() - wakeStartTime;
+    }
+
+    private void startWhenAttached(final DriverRun run) {
+        final Driver driver = run.driver;
+
+        UsbAttachWaiter.OnAttachedListener listener = new UsbAttachWaiter.OnAttachedListener() {
+            @Override
+            public void onAttached() {
+                run.attachedAt = now();
+                Tracer.getInstance().instant(driver.getName() + " attached");
+                startDriver(run);
+            }
+
+            @Override
+            public void onTimedOut() {
+                run.attachTimedOut = true;
+                Logger.log(TAG, "StartUp: " + driver.getName() + " attach wait timed out");
+            }
+        };
+
+        switch (driver.getDependency()) {
+            case Driver.DEPENDS_ON_DEVICE:
+                Logger.log(TAG, "StartUp: " + driver.getName() + " waiting for " +
+                        UsbAttachWaiter.formatDeviceId(driver.getDeviceId()));
+                usbAttachWaiter.awaitDevice(
+                        driver.getDeviceId(),
+                        driver.getAttachTimeout(),
+                        listener
+                );
+                break;
+
+            case Driver.DEPENDS_ON_ALL_DEVICES:
+                if (inventoryAttached) {
+                    if (inventoryTimedOut) {
+                        listener.onTimedOut();
+                    }
+                    listener.onAttached();
+                } else {
+                    Logger.log(TAG, "StartUp: " + driver.getName() + " waiting for all devices");
+                    inventoryListeners.add(listener);
+                }
+                break;
+
+            default:
+                listener.onAttached();
+        }
+    }
+
+    /**
+     * Wait for every device from recent wakes, or for the set number of devices if there is
+     * no inventory yet
+     */
+    private void awaitInventory() {
+        inventoryListeners.clear();
+        inventoryAttached = false;
+        inventoryTimedOut = false;
+
+        final int[] expected = usbInventory.getSnapshot();
+        final int minDevices = Integer.valueOf(sharedPreferences.getString(
+                context.getString(R.string.pref_num_devices_key),
+                "3"
+        ));
+
+        UsbAttachWaiter.OnAttachedListener listener = new UsbAttachWaiter.OnAttachedListener() {
+            @Override
+            public void onAttached() {
+                usbInventory.recordAttached();
+
+                if (!inventoryTimedOut) {
+                    Logger.log(TAG, "StartUp: All devices attached after " + now() + "ms");
+                }
+
+                inventoryAttached = true;
+
+                ArrayList<UsbAttachWaiter.OnAttachedListener> listeners =
+                        new ArrayList<>(inventoryListeners);
+                inventoryListeners.clear();
+
+                for (UsbAttachWaiter.OnAttachedListener driverListener: listeners) {
+                    if (inventoryTimedOut) {
+                        driverListener.onTimedOut();
+                    }
+                    driverListener.onAttached();
+                }
+            }
+
+            @Override
+            public void onTimedOut() {
+                inventoryTimedOut = true;
+                usbInventory.recordAttached();
+
+                int[] missing = usbInventory.getMissing(expected);
+                if (missing.length > 0) {
+                    Logger.log(TAG, "StartUp: Missing USB devices " +
+                            UsbInventory.format(missing));
+                } else {
+                    Logger.log(TAG, "StartUp: Only " + usbInventory.getAttachedDevices().length +
+                            " of " + minDevices + " devices attached");
+                }
+            }
+        };
+
+        if (expected.length > 0) {
+            Log.d(TAG, "Waiting for USB inventory: " + UsbInventory.format(expected));
+            usbAttachWaiter.awaitDevices(expected, INVENTORY_ATTACH_TIMEOUT, listener);
+        } else {
+            usbAttachWaiter.awaitDeviceCount(minDevices, INVENTORY_ATTACH_TIMEOUT, listener);
+        }
+    }
+
+    private void startDriver(final DriverRun run) {
+        final DriverRun[] wakeRuns = runs;
+        final long traceStart = Tracer.now();
+
+        final Driver.ReadyCallback readyCallback = new Driver.ReadyCallback() {
+            @Override
+            public void onReady() {
+                final long readyAt = now();
+                Tracer.getInstance().complete("Driver " + run.driver.getName(), traceStart);
+
+                mainThread.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        // Ignore drivers from a previous wake
+                        if (wakeRuns == runs && run.readyAt == NOT_YET) {
+                            run.readyAt = readyAt;
+                            checkAllReady();
+                        }
+                    }
+                });
+            }
+        };
+
+        run.startedAt = now();
+        Logger.log(TAG, "StartUp: Starting " + run.driver.getName());
+
+        Runnable startRunnable = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    run.driver.start(readyCallback);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Error starting " + run.driver.getName(), e);
+                }
+
+                mainThread.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (wakeRuns == runs) {
+                            onStarted(run);
+                        }
+                    }
+                });
+            }
+        };
+
+        if (run.driver.startsOnMainThread()) {
+            startRunnable.run();
+        } else {
+            startPool.execute(startRunnable);
+        }
+    }
+
+    private void checkAllReady() {
+        for (DriverRun run: runs) {
+            if (run.readyAt == NOT_YET) {
+                return;
+            }
+        }
+
+        report();
+    }
+
+    private void report() {
+        if (reported) {
+            return;
+        }
+        reported = true;
+        mainThread.removeCallbacks(reportTimeoutRunnable);
+
+        if (runs.length < 1) {
+            return;
+        }
+
+        StringBuilder report = new StringBuilder("Driver timings (ms):");
+
+        for (DriverRun run: runs) {
+            report.append(' ')
+                    .append(run.driver.getName())
+                    .append(" attach ")
+                    .append(formatTime(run.attachedAt));
+
+            if (run.attachTimedOut) {
+                report.append(" (timed out)");
+            }
+
+            report.append(" start ")
+                    .append(formatTime(run.startedAt))
+                    .append(" ready ")
+                    .append(formatTime(run.readyAt))
+                    .append(';');
+        }
+
+        report.setLength(report.length() - 1);
+        Logger.log(TAG, report.toString());
+    }
+
+    private static String formatTime(long time) {
+        return time == NOT_YET ? "-" : String.valueOf(time);
+    }
+}
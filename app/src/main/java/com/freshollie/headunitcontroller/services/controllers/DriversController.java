@@ -4,15 +4,15 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
-import android.hardware.usb.UsbManager;
 import android.os.Handler;
-import android.os.SystemClock;
 import android.preference.PreferenceManager;
 
 import com.freshollie.headunitcontroller.R;
 import com.freshollie.headunitcontroller.services.input.DeviceInputManager;
+import com.freshollie.headunitcontroller.services.input.InputPipeline;
+import com.freshollie.headunitcontroller.services.input.RemoteInputPipeline;
+import com.freshollie.headunitcontroller.services.input.ShuttleXpressInputSource;
 import com.freshollie.headunitcontroller.util.Logger;
-import com.freshollie.headunitcontroller.util.SuperuserManager;
 
 /**
  * Created by freshollie on 03.12.17.
@@ -27,131 +27,215 @@ public class DriversController {
     private static final String START_USB_SERVICE_ACTION =
             USB_GPS_PACKAGE + ".action.START_GPS_PROVIDER";
 
-    private static final String AUTOBRIGHT_SERVICE_START_COMMAND =
-            "am startservice " +
-                    "-a android.intent.action.MAIN " +
-                    "-n com.autobright.kevinforeman.autobright/.AutoBrightService;" +
+    private static final String GPS_DRIVER = "GPS";
 
-                    "am run " +
-                    "-a android.intent.action.MAIN " +
-                    "-n com.autobright.kevinforeman.autobright/.AutoBright";
-
-    private static final int ATTACH_TIMEOUT = 3000; // Milliseconds
+    private static final int GPS_ATTACH_TIMEOUT = 5000; // Milliseconds
+    private static final int INPUT_ATTACH_TIMEOUT = 3000; // Milliseconds
 
     private final Intent startUsbGpsServiceIntent;
 
     private final Context context;
     private final Handler mainThread;
     private final SharedPreferences sharedPreferences;
-    private final UsbManager usbManager;
-    private final DeviceInputManager deviceInputManager;
-    private final SuperuserManager superuserManager;
+    private final DriverOrchestrator driverOrchestrator;
+    private final GpsFixMonitor gpsFixMonitor;
+    private InputPipeline inputPipeline;
+    private final AutobrightLauncher autobrightLauncher;
+
+    // Called once input has opened, while the input driver is waiting for it
+    private Driver.ReadyCallback inputReadyCallback;
+
+    private final InputPipeline.OnOpenListener inputOpenListener =
+            new InputPipeline.OnOpenListener() {
+                @Override
+                public void onInputOpened() {
+                    mainThread.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (inputReadyCallback != null) {
+                                inputReadyCallback.onReady();
+                                inputReadyCallback = null;
+                            }
+                        }
+                    });
+                }
+            };
 
-    private interface OnAllDevicesAttachedListener {
-        void onAllAttached();
-        void onTimedOut();
-    }
+    private final Driver[] drivers;
 
     public DriversController(Context serviceContext) {
         context = serviceContext;
 
         sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
-        usbManager = (UsbManager) context.getSystemService(Context.USB_SERVICE);
-
         mainThread = new Handler(context.getMainLooper());
-        deviceInputManager = new DeviceInputManager(context);
+        driverOrchestrator = new DriverOrchestrator(context, mainThread);
+        gpsFixMonitor = new GpsFixMonitor(context, mainThread);
+        inputPipeline = createInputPipeline();
 
         startUsbGpsServiceIntent = new Intent();
         startUsbGpsServiceIntent.setComponent(new ComponentName(USB_GPS_PACKAGE, USB_GPS_SERVICE));
         startUsbGpsServiceIntent.setAction(START_USB_SERVICE_ACTION);
 
-        superuserManager = SuperuserManager.getInstance();
-    }
+        autobrightLauncher = new AutobrightLauncher(context);
 
-    private void registerOnAllAttachedListener(final OnAllDevicesAttachedListener listener) {
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                long startTime = SystemClock.currentThreadTimeMillis();
+        drivers = new Driver[] {
+                new Driver("Autobright", 0) {
+                    @Override
+                    boolean isEnabled() {
+                        return sharedPreferences.getBoolean(
+                                context.getString(R.string.pref_launch_autobright_key),
+                                true
+                        );
+                    }
 
-                final int allDevices = Integer.valueOf(sharedPreferences.getString(
-                        context.getString(R.string.pref_num_devices_key),
-                        "3"
-                ));
+                    @Override
+                    void start(ReadyCallback readyCallback) {
+                        // Blocks until Autobright is running, or has given up
+                        if (autobrightLauncher.launch()) {
+                            readyCallback.onReady();
+                        }
+                    }
+                },
 
-                while (usbManager.getDeviceList().size() < allDevices
-                        && (SystemClock.currentThreadTimeMillis() - startTime) < ATTACH_TIMEOUT) {
+                new Driver(GPS_DRIVER, GPS_ATTACH_TIMEOUT) {
+                    @Override
+                    int getDependency() {
+                        // Without a GPS device set we don't know which device to wait for
+                        return getDeviceId() != UsbAttachWaiter.NO_DEVICE ?
+                                DEPENDS_ON_DEVICE : DEPENDS_ON_ALL_DEVICES;
+                    }
 
-                }
+                    @Override
+                    int getDeviceId() {
+                        return UsbAttachWaiter.parseDeviceId(sharedPreferences.getString(
+                                context.getString(R.string.pref_gps_device_key),
+                                ""
+                        ));
+                    }
 
-                mainThread.post(new Runnable() {
                     @Override
-                    public void run() {
-                        if (usbManager.getDeviceList().size() < allDevices) {
-                            listener.onTimedOut();
-                        }
-                        listener.onAllAttached();
+                    boolean isEnabled() {
+                        return sharedPreferences.getBoolean(
+                                context.getString(R.string.pref_launch_gps_key),
+                                false
+                        );
                     }
-                });
-            }
-        }).start();
-    }
 
-    public void startInputService() {
-        deviceInputManager.start();
-    }
+                    @Override
+                    void start(final ReadyCallback readyCallback) {
+                        launchGpsService();
+
+                        // The driver is ready once it has a fix
+                        mainThread.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                boolean monitoring = gpsFixMonitor.start(
+                                        new GpsFixMonitor.OnFirstFixListener() {
+                                            @Override
+                                            public void onFirstFix() {
+                                                readyCallback.onReady();
+                                            }
+                                        }
+                                );
+
+                                if (!monitoring) {
+                                    readyCallback.onReady();
+                                }
+                            }
+                        });
+                    }
+                },
 
-    private void launchGpsService() {
-        context.startService(startUsbGpsServiceIntent);
+                new Driver("Input", INPUT_ATTACH_TIMEOUT) {
+                    @Override
+                    int getDependency() {
+                        return DEPENDS_ON_DEVICE;
+                    }
+
+                    @Override
+                    int getDeviceId() {
+                        return UsbAttachWaiter.getDeviceId(
+                                ShuttleXpressInputSource.VENDOR_ID,
+                                ShuttleXpressInputSource.PRODUCT_ID
+                        );
+                    }
+
+                    @Override
+                    boolean isEnabled() {
+                        return sharedPreferences.getBoolean(
+                                context.getString(R.string.pref_input_service_enabled_key),
+                                true
+                        );
+                    }
+
+                    @Override
+                    boolean startsOnMainThread() {
+                        return true;
+                    }
+
+                    @Override
+                    void start(ReadyCallback readyCallback) {
+                        // The driver is ready once an input source has opened its device
+                        inputReadyCallback = readyCallback;
+                        startInputService();
+                    }
+                }
+        };
     }
 
-    private void launchBrightnessControllerService() {
-        Logger.log(TAG, "StartUp: Starting brightness controller");
+    private boolean shouldIsolateInput() {
+        return sharedPreferences.getBoolean(
+                context.getString(R.string.pref_input_isolated_process_key),
+                false
+        );
+    }
 
-        // Autobright is not an exported service :(
-        if (superuserManager.hasPermission()) {
-            superuserManager.asyncExecute(AUTOBRIGHT_SERVICE_START_COMMAND);
+    private InputPipeline createInputPipeline() {
+        InputPipeline pipeline;
+        if (shouldIsolateInput()) {
+            pipeline = new RemoteInputPipeline(context);
+        } else {
+            pipeline = new DeviceInputManager(context);
         }
+
+        pipeline.setOnOpenListener(inputOpenListener);
+        return pipeline;
     }
 
-    public void onStartup() {
-        if (sharedPreferences.getBoolean(
-                context.getString(R.string.pref_launch_autobright_key), true)) {
-            Logger.log(TAG, "StartUp: Starting Autobright");
-            launchBrightnessControllerService();
+    public void startInputService() {
+        // Move input in or out of the input process if the preference has changed
+        if (shouldIsolateInput() != (inputPipeline instanceof RemoteInputPipeline)) {
+            inputPipeline.destroy();
+            inputPipeline = createInputPipeline();
+            Logger.log(TAG, shouldIsolateInput() ?
+                    "Input moved to its own process" : "Input moved into the main process");
         }
 
-        Logger.log(TAG, "StartUp: Waiting for devices");
-
-        registerOnAllAttachedListener(new OnAllDevicesAttachedListener() {
-            @Override
-            public void onAllAttached() {
-                Logger.log(TAG, "StartUp: All devices attached");
+        inputPipeline.start();
+    }
 
-                if (sharedPreferences.getBoolean(
-                        context.getString(R.string.pref_launch_gps_key),
-                        false)) {
-                    Logger.log(TAG, "StartUp: Launching GPS service");
-                    launchGpsService();
-                }
+    private void launchGpsService() {
+        context.startService(startUsbGpsServiceIntent);
+    }
 
-                if (sharedPreferences.getBoolean(
-                        context.getString(R.string.pref_input_service_enabled_key),
-                        true)) {
-                    Logger.log(TAG, "StartUp: Starting input");
-                    startInputService();
-                }
-            }
+    public void onStartup() {
+        driverOrchestrator.start(drivers);
+    }
 
-            @Override
-            public void onTimedOut() {
-                Logger.log(TAG, "StartUp: Attach wait timed out");
-            }
-        });
+    /**
+     * Run the callback on the main thread once the GPS driver has been launched this wake,
+     * or straight away if it isn't being launched. Must be called after onStartup.
+     */
+    public void whenGpsStarted(Runnable callback) {
+        driverOrchestrator.whenStarted(GPS_DRIVER, callback);
     }
 
     public void onSuspend() {
-        deviceInputManager.stop();
+        // Don't start drivers after we have suspended
+        driverOrchestrator.cancel();
+        gpsFixMonitor.stop();
+        inputReadyCallback = null;
+        inputPipeline.stop();
     }
 
     public void onPowerConnected() {
@@ -163,6 +247,8 @@ public class DriversController {
     }
 
     public void destroy() {
-        deviceInputManager.destroy();
+        driverOrchestrator.destroy();
+        gpsFixMonitor.stop();
+        inputPipeline.destroy();
     }
 }
@@ -0,0 +1,235 @@
+package com.freshollie.headunitcontroller.services.controllers;
+
+import android.Manifest;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+import android.location.Location;
+import android.location.LocationListener;
+import android.location.LocationManager;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.support.v4.content.ContextCompat;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.freshollie.headunitcontroller.R;
+import com.freshollie.headunitcontroller.util.Logger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Listens passively for GPS fixes after the USB GPS driver has been launched, to measure
+ * the time to first fix and how often fixes arrive after that.
+ *
+ * Each wake is saved in a rolling history, as "ttff/avg interval" in milliseconds,
+ * with -1 for a wake which never got a fix.
+ */
+class GpsFixMonitor {
+    private static final String TAG = GpsFixMonitor.class.getSimpleName();
+
+    private static final int FIX_TIMEOUT = 120000; // Milliseconds
+    private static final int CADENCE_WINDOW = 60000; // Milliseconds
+
+    private static final int MAX_HISTORY = 10;
+
+    interface OnFirstFixListener {
+        void onFirstFix();
+    }
+
+    private final Context context;
+    private final Handler handler;
+    private final SharedPreferences sharedPreferences;
+    private final LocationManager locationManager;
+
+    private OnFirstFixListener firstFixListener;
+
+    private boolean monitoring = false;
+    private long startTime;
+    private long firstFixTime;
+    private long lastFixTime;
+    private long maxInterval;
+    private int numFixes;
+
+    private final LocationListener locationListener = new LocationListener() {
+        @Override
+        public void onLocationChanged(Location location) {
+            if (LocationManager.GPS_PROVIDER.equals(location.getProvider())) {
+                onFix();
+            }
+        }
+
+        @Override
+        public void onStatusChanged(String provider, int status, Bundle extras) {
+
+        }
+
+        @Override
+        public void onProviderEnabled(String provider) {
+
+        }
+
+        @Override
+        public void onProviderDisabled(String provider) {
+
+        }
+    };
+
+    private final Runnable finishRunnable = new Runnable() {
+        @Override
+        public void run() {
+            stop();
+        }
+    };
+
+    GpsFixMonitor(Context context, Handler handler) {
+        this.context = context;
+        this.handler = handler;
+        sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+        locationManager = (LocationManager) context.getSystemService(Context.LOCATION_SERVICE);
+    }
+
+    /**
+     * Start measuring from now, which should be when the GPS driver was launched.
+     * Must be called on the handler's thread.
+     *
+     * @return false if we can't listen for locations
+     */
+    boolean start(OnFirstFixListener listener) {
+        stop();
+
+        if (ContextCompat.checkSelfPermission(context, Manifest.permission.ACCESS_FINE_LOCATION)
+                != PackageManager.PERMISSION_GRANTED) {
+            Log.e(TAG, "No location permission, can't measure GPS fixes");
+            return false;
+        }
+
+        firstFixListener = listener;
+        startTime = SystemClock.elapsedRealtime();
+        firstFixTime = -1;
+        lastFixTime = -1;
+        maxInterval = 0;
+        numFixes = 0;
+
+        locationManager.requestLocationUpdates(
+                LocationManager.PASSIVE_PROVIDER,
+                0,
+                0,
+                locationListener,
+                handler.getLooper()
+        );
+
+        monitoring = true;
+        handler.postDelayed(finishRunnable, FIX_TIMEOUT);
+        return true;
+    }
+
+    /**
+     * Stop measuring, and save the measurements so far
+     */
+    void stop() {
+        if (!monitoring) {
+            return;
+        }
+
+        monitoring = false;
+        handler.removeCallbacks(finishRunnable);
+        locationManager.removeUpdates(locationListener);
+        firstFixListener = null;
+
+        long timeToFirstFix = -1;
+        long averageInterval = -1;
+
+        if (firstFixTime > -1) {
+            timeToFirstFix = firstFixTime - startTime;
+
+            if (numFixes > 1) {
+                averageInterval = (lastFixTime - firstFixTime) / (numFixes - 1);
+            }
+
+            Logger.log(TAG, "GPS: First fix after " + timeToFirstFix + "ms, " + numFixes +
+                    " fixes every " + averageInterval + "ms, max gap " + maxInterval + "ms");
+        } else {
+            Logger.log(TAG, "GPS: No fix after " + (SystemClock.elapsedRealtime() - startTime) +
+                    "ms");
+        }
+
+        long medianTimeToFirstFix = addToHistory(timeToFirstFix, averageInterval);
+        if (medianTimeToFirstFix > -1) {
+            Logger.log(TAG, "GPS: Median first fix over recent wakes " +
+                    medianTimeToFirstFix + "ms");
+        }
+    }
+
+    private void onFix() {
+        long now = SystemClock.elapsedRealtime();
+        numFixes++;
+
+        if (firstFixTime < 0) {
+            firstFixTime = now;
+            Logger.log(TAG, "GPS: First fix after " + (now - startTime) + "ms");
+
+            if (firstFixListener != null) {
+                firstFixListener.onFirstFix();
+            }
+
+            // Measure the cadence for a while after the first fix
+            handler.removeCallbacks(finishRunnable);
+            handler.postDelayed(finishRunnable, CADENCE_WINDOW);
+        } else {
+            maxInterval = Math.max(maxInterval, now - lastFixTime);
+        }
+
+        lastFixTime = now;
+    }
+
+    /**
+     * @return the median time to first fix in the history, ignoring wakes without a fix,
+     * or -1 if there are none
+     */
+    private long addToHistory(long timeToFirstFix, long averageInterval) {
+        String history = sharedPreferences.getString(
+                context.getString(R.string.gps_fix_history_key),
+                ""
+        );
+
+        ArrayList<String> entries = new ArrayList<>();
+        if (!history.isEmpty()) {
+            entries.addAll(Arrays.asList(history.split(",")));
+        }
+
+        entries.add(timeToFirstFix + "/" + averageInterval);
+        while (entries.size() > MAX_HISTORY) {
+            entries.remove(0);
+        }
+
+        sharedPreferences
+                .edit()
+                .putString(context.getString(R.string.gps_fix_history_key),
+                        TextUtils.join(",", entries))
+                .apply();
+
+        ArrayList<Long> fixTimes = new ArrayList<>();
+        for (String entry: entries) {
+            try {
+                long fixTime = Long.parseLong(entry.split("/")[0]);
+                if (fixTime > -1) {
+                    fixTimes.add(fixTime);
+                }
+            } catch (NumberFormatException e) {
+                Log.e(TAG, "Bad history entry: " + entry);
+            }
+        }
+
+        if (fixTimes.isEmpty()) {
+            return -1;
+        }
+
+        Collections.sort(fixTimes);
+        return fixTimes.get(fixTimes.size() / 2);
+    }
+}
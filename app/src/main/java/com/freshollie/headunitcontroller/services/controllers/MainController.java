@@ -1,10 +1,17 @@
 package com.freshollie.headunitcontroller.services.controllers;
 
 import android.annotation.SuppressLint;
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
+import android.os.Build;
 import android.os.Handler;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.util.Log;
 
@@ -12,6 +19,13 @@ import com.freshollie.headunitcontroller.R;
 import com.freshollie.headunitcontroller.util.PowerUtil;
 import com.freshollie.headunitcontroller.util.Logger;
 import com.freshollie.headunitcontroller.util.SuperuserManager;
+import com.freshollie.headunitcontroller.util.Tracer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Created by Freshollie on 14/12/2016.
@@ -23,12 +37,51 @@ public class MainController {
     private static final int STATE_START_ROUTINE_RUN = 0;
     private static final int STATE_STOP_ROUTINE_RUN = 1;
 
+    private static final long TURN_OFF_RADIOS_DELAY = 30 * 60 * 1000; // Milliseconds
+    private static final long TRIM_APPS_DELAY = 2 * 60 * 60 * 1000; // Milliseconds
+
+    private static final String TRIM_APPS_COMMAND = "am kill-all";
+
+    // Wake tasks whose work lived in our process, so are lost if it is killed
+    private static final List<String> PROCESS_BOUND_WAKE_TASKS = Arrays.asList("drivers", "gps");
+
+    private static final String WARM_SUSPEND_EXPIRED =
+            "com.freshollie.headunitcontroller.action.WARM_SUSPEND_EXPIRED";
+
+    // Held only by apps signed with our key, so other apps can't send our alarm broadcasts
+    static final String INTERNAL_BROADCAST_PERMISSION =
+            "com.freshollie.headunitcontroller.permission.INTERNAL_BROADCAST";
+
     private int lastState;
 
+    // Whether the wake routine has run in this process, rather than only in the journal
+    private boolean wakeRunInProcess = false;
+
+    // Whether the next wake routine should carry on from the journal, which is only
+    // trusted when the service was restarted, not when power was reconnected
+    private boolean resumeFromJournal = false;
+
+    // Suspend is deferred for the grace period, so a short stop can resume warm
+    private boolean warmSuspended = false;
+    private long powerLostTime;
+
     private Context context;
     private SharedPreferences sharedPreferences;
     private SuperuserManager superuserManager;
     private final PowerManager powerManager;
+    private final AlarmManager alarmManager;
+
+    private final PendingIntent warmSuspendExpiredPendingIntent;
+    private final BroadcastReceiver warmSuspendExpiredReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (warmSuspended && !PowerUtil.isConnected(context)) {
+                warmSuspended = false;
+                Logger.log(TAG, "Suspend: Grace period over");
+                onSuspend();
+            }
+        }
+    };
 
     private Handler mainThread;
 
@@ -37,6 +90,13 @@ public class MainController {
     private PlaybackController playbackController;
     private NavigationAppController navigationAppController;
     private DriversController driversController;
+    private final RadioController radioController;
+
+    private final WakeTaskGraph wakeTaskGraph;
+    private final WakeDelayEstimator wakeDelayEstimator;
+    private final PowerStateMachine powerStateMachine;
+    private final SuspendTimeline suspendTimeline;
+    private final RoutineJournal routineJournal;
 
     public MainController(Context serviceContext) {
         context = serviceContext;
@@ -45,13 +105,72 @@ public class MainController {
         playbackController = new PlaybackController(context);
         navigationAppController = new NavigationAppController(context);
         driversController = new DriversController(context);
+        radioController = new RadioController(context);
 
         sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
         powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+
+        warmSuspendExpiredPendingIntent = PendingIntent.getBroadcast(context, 0,
+                new Intent(WARM_SUSPEND_EXPIRED).setPackage(context.getPackageName()),
+                PendingIntent.FLAG_UPDATE_CURRENT);
+
+        context.registerReceiver(
+                warmSuspendExpiredReceiver,
+                new IntentFilter(WARM_SUSPEND_EXPIRED),
+                INTERNAL_BROADCAST_PERMISSION,
+                null
+        );
+
+        routineJournal = new RoutineJournal(context);
 
-        lastState = STATE_STOP_ROUTINE_RUN;
+        // Carry on from where we were if the process was killed
+        if (RoutineJournal.STATE_WAKE.equals(routineJournal.getLastState())) {
+            lastState = STATE_START_ROUTINE_RUN;
+        } else {
+            lastState = STATE_STOP_ROUTINE_RUN;
+        }
 
         mainThread = new Handler(serviceContext.getMainLooper());
+        wakeTaskGraph = new WakeTaskGraph(mainThread);
+        wakeTaskGraph.setOnTaskDoneListener(new WakeTaskGraph.OnTaskDoneListener() {
+            @Override
+            public void onTaskDone(String name) {
+                routineJournal.recordStep(name);
+            }
+        });
+
+        wakeDelayEstimator = new WakeDelayEstimator(context, mainThread);
+
+        suspendTimeline = new SuspendTimeline(context);
+        suspendTimeline.setOnStepRunListener(new SuspendTimeline.OnStepRunListener() {
+            @Override
+            public void onStepRun(String name) {
+                routineJournal.recordStep(name);
+            }
+        });
+
+        powerStateMachine = new PowerStateMachine(context, mainThread,
+                new PowerStateMachine.OnPowerStateChangedListener() {
+                    @Override
+                    public void onPowerConnected() {
+                        commitPowerConnected();
+                    }
+
+                    @Override
+                    public void onPowerDisconnected() {
+                        commitPowerDisconnected();
+                    }
+
+                    @Override
+                    public void onFlapIgnored(boolean connected) {
+                        // Let go of anything held early for power which never settled
+                        if (!connected) {
+                            cancelPowerConnectedEarly();
+                        }
+                    }
+                }
+        );
 
         Log.d(TAG, "Created");
     }
@@ -77,26 +196,119 @@ public class MainController {
         return driversController;
     }
 
+    /**
+     * Run the wake routine as a graph, so that music and navigation don't have to wait
+     * for the tasks they don't depend on
+     */
+    private void runWakeTasks(Collection<String> alreadyDone) {
+        wakeTaskGraph.run(
+                alreadyDone,
+                new WakeTaskGraph.Task("volume") {
+                    @Override
+                    void run(WakeTaskGraph.DoneCallback done) {
+                        playbackController.setVolume();
+                        done.onDone();
+                    }
+                },
+
+                new WakeTaskGraph.Task("media", "volume") {
+                    @Override
+                    void run(WakeTaskGraph.DoneCallback done) {
+                        playbackController.resumeMedia();
+                        done.onDone();
+                    }
+                },
+
+                new WakeTaskGraph.Task("drivers") {
+                    @Override
+                    boolean runsOnMainThread() {
+                        return true;
+                    }
+
+                    @Override
+                    void run(WakeTaskGraph.DoneCallback done) {
+                        driversController.onStartup();
+                        done.onDone();
+                    }
+                },
+
+                // Maps needs the GPS provider, but not a fix, before it is launched
+                new WakeTaskGraph.Task("gps", "drivers") {
+                    @Override
+                    boolean runsOnMainThread() {
+                        return true;
+                    }
+
+                    @Override
+                    void run(final WakeTaskGraph.DoneCallback done) {
+                        driversController.whenGpsStarted(new Runnable() {
+                            @Override
+                            public void run() {
+                                done.onDone();
+                            }
+                        });
+                    }
+                },
+
+                new WakeTaskGraph.Task("maps", "gps") {
+                    @Override
+                    boolean runsOnMainThread() {
+                        return true;
+                    }
+
+                    @Override
+                    void run(WakeTaskGraph.DoneCallback done) {
+                        navigationAppController.onStartup();
+                        done.onDone();
+                    }
+                },
+
+                new WakeTaskGraph.Task("shell") {
+                    @Override
+                    void run(WakeTaskGraph.DoneCallback done) {
+                        String commands = sharedPreferences.getString(
+                                context.getString(R.string.pref_shell_wakeup_commands_key),
+                                ""
+                        );
+
+                        if (!commands.isEmpty()) {
+                            Logger.log(TAG, "StartUp: Running shell commands");
+                            superuserManager.execute(commands);
+                        }
+                        done.onDone();
+                    }
+                }
+        );
+    }
+
     private void onStartup() {
         Logger.log(TAG, "Running wakeup routine");
 
+        boolean resuming = resumeFromJournal;
+        resumeFromJournal = false;
+
         if (PowerUtil.isConnected(context)) {
+            if (lastState == STATE_START_ROUTINE_RUN && !wakeRunInProcess && !resuming) {
+                // Power was lost and reconnected while we were dead, so this is a new drive
+                Logger.log(TAG, "StartUp: Ignoring stale wake in the journal");
+                lastState = STATE_STOP_ROUTINE_RUN;
+            }
+
             if (lastState != STATE_START_ROUTINE_RUN) {
                 lastState = STATE_START_ROUTINE_RUN;
+                wakeRunInProcess = true;
+                routineJournal.recordState(RoutineJournal.STATE_WAKE);
 
-                playbackController.onStartup();
-                driversController.onStartup();
-                navigationAppController.onStartup();
-
-                if (!sharedPreferences
-                        .getString(context.getString(R.string.pref_shell_wakeup_commands_key), "")
-                        .isEmpty()) {
-                    Logger.log(TAG, "StartUp: Running shell commands");
-                    superuserManager.asyncExecute(sharedPreferences
-                            .getString(context.getString(R.string.pref_shell_wakeup_commands_key), "")
-                    );
-                }
+                runWakeTasks(Collections.<String>emptyList());
+            } else if (!wakeRunInProcess) {
+                wakeRunInProcess = true;
+
+                ArrayList<String> alreadyDone =
+                        new ArrayList<>(routineJournal.getCompletedSteps());
+                alreadyDone.removeAll(PROCESS_BOUND_WAKE_TASKS);
 
+                Logger.log(TAG, "StartUp: Resuming after restart, already done " + alreadyDone);
+                runWakeTasks(alreadyDone);
             } else {
                 Logger.log(TAG, "StartUp: Aborting, already run");
             }
@@ -105,17 +317,99 @@ public class MainController {
         }
     }
 
+    /**
+     * Run the suspend steps which can wait, each at its own time after suspend
+     */
+    private void startSuspendTimeline(long startTime, Collection<String> alreadyRan) {
+        suspendTimeline.start(
+                startTime,
+                alreadyRan,
+                new SuspendTimeline.Step("pause media", 0) {
+                    @Override
+                    boolean isEnabled() {
+                        return playbackController.shouldPauseMedia();
+                    }
+
+                    @Override
+                    void run() {
+                        playbackController.pauseMedia();
+                    }
+                },
+
+                new SuspendTimeline.Step(
+                        "stop navigation",
+                        NavigationAppController.DELAY_BEFORE_STOP_MAPS_NAVIGATION_MS) {
+                    @Override
+                    boolean isEnabled() {
+                        return navigationAppController.shouldStopNavigation();
+                    }
+
+                    @Override
+                    void run() {
+                        navigationAppController.stopNavigation();
+                    }
+                },
+
+                new SuspendTimeline.Step("turn off radios", TURN_OFF_RADIOS_DELAY) {
+                    @Override
+                    boolean isEnabled() {
+                        return radioController.shouldDisableRadios();
+                    }
+
+                    @Override
+                    void run() {
+                        radioController.disableRadios();
+                    }
+                },
+
+                new SuspendTimeline.Step("trim apps", TRIM_APPS_DELAY) {
+                    @Override
+                    boolean isEnabled() {
+                        return sharedPreferences.getBoolean(
+                                context.getString(R.string.pref_trim_apps_key),
+                                false
+                        );
+                    }
+
+                    @Override
+                    void run() {
+                        if (superuserManager.hasPermission()) {
+                            superuserManager.asyncExecuteAwake(context, TRIM_APPS_COMMAND);
+                        }
+                    }
+                }
+        );
+    }
+
     private void onSuspend() {
         Log.d(TAG, "Running stop routine");
 
         if (lastState == STATE_START_ROUTINE_RUN) {
             lastState = STATE_STOP_ROUTINE_RUN;
+            wakeRunInProcess = false;
+            routineJournal.recordState(RoutineJournal.STATE_SUSPEND);
 
             Logger.log(TAG, "Suspend started");
 
+            wakeTaskGraph.cancel();
+
+            Tracer tracer = Tracer.getInstance();
+            long traceStart = Tracer.now();
             playbackController.onSuspend();
+            tracer.complete("Playback suspend", traceStart);
+
+            traceStart = Tracer.now();
             driversController.onSuspend();
+            tracer.complete("Drivers suspend", traceStart);
+
+            traceStart = Tracer.now();
             navigationAppController.onSuspend();
+            tracer.complete("Navigation suspend", traceStart);
+
+            startSuspendTimeline(
+                    SystemClock.elapsedRealtime(),
+                    Collections.<String>emptyList()
+            );
 
 
             if (!sharedPreferences
@@ -136,48 +430,184 @@ public class MainController {
         }
     }
 
-    public void onPowerConnected() {
+    private int getWarmSuspendGracePeriod() {
+        try {
+            return Integer.valueOf(
+                    sharedPreferences.getString(
+                            context.getString(R.string.pref_warm_suspend_key),
+                            "0"
+                    )
+            );
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private void startWarmSuspend(int gracePeriod) {
+        warmSuspended = true;
+        powerLostTime = SystemClock.elapsedRealtime();
+
+        long time = powerLostTime + gracePeriod * 1000L;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            alarmManager.setExactAndAllowWhileIdle(
+                    AlarmManager.ELAPSED_REALTIME_WAKEUP,
+                    time,
+                    warmSuspendExpiredPendingIntent
+            );
+        } else {
+            alarmManager.setExact(
+                    AlarmManager.ELAPSED_REALTIME_WAKEUP,
+                    time,
+                    warmSuspendExpiredPendingIntent
+            );
+        }
+
+        Logger.log(TAG, "Suspend: Staying warm for " + gracePeriod + "s");
+    }
+
+    private void cancelWarmSuspend() {
+        warmSuspended = false;
+        alarmManager.cancel(warmSuspendExpiredPendingIntent);
+    }
+
+    /**
+     * Hold the wakelock and start blank audio as soon as power is connected. These need
+     * no permissions, so are started while the service is still checking them.
+     */
+    public void onPowerConnectedEarly() {
         if (sharedPreferences.getBoolean(context.getString(R.string.pref_wakelock_key), true) && wakeLock == null) {
             Logger.log(TAG,"Acquiring wakelock");
             acquireWakeLock();
         }
 
         playbackController.onPowerConnected();
+    }
+
+    /**
+     * Let go of the wakelock and blank audio started early, unless power has settled as
+     * connected and the routine is using them
+     */
+    public void cancelPowerConnectedEarly() {
+        if (powerStateMachine.isConnected()) {
+            return;
+        }
+
+        releaseWakeLock();
+        playbackController.onPowerDisconnected();
+    }
+
+    /**
+     * Power connected broadcasts are debounced, and only acted on once power has settled
+     */
+    public void onPowerConnected() {
+        Log.d(TAG, "Power connected broadcast");
+        powerStateMachine.onPowerEvent(true);
+    }
+
+    public void onPowerDisconnected() {
+        Log.d(TAG, "Power disconnected broadcast");
+        powerStateMachine.onPowerEvent(false);
+    }
+
+    private void commitPowerConnected() {
+        // Runs are started once power has settled, so each wake is traced as one run
+        // however much power flapped before it settled
+        Tracer.getInstance().startRun(context, "POWER_CONNECTED");
+        long resumeStartTime = SystemClock.elapsedRealtime();
+
+        suspendTimeline.cancel();
+        radioController.restoreRadios();
+
+        onPowerConnectedEarly();
         navigationAppController.onPowerConnected();
         driversController.onPowerConnected();
 
-        int delay = Integer.valueOf(
-                sharedPreferences.getString(
-                        context.getString(R.string.pref_wake_up_delay_key),
-                        "1000"
-                )
-        );
+        // Input, media and drivers are still running, so there is nothing else to do
+        if (warmSuspended) {
+            cancelWarmSuspend();
+
+            long now = SystemClock.elapsedRealtime();
+            Logger.log(TAG, "StartUp: Warm resume after " + (now - powerLostTime) / 1000 +
+                    "s away, took " + (now - resumeStartTime) + "ms");
+            return;
+        }
+
+        wakeDelayEstimator.start();
+        int delay = wakeDelayEstimator.getDelay();
 
         Logger.log(TAG, "StartUp: Waiting " + delay + "ms");
+        final long delayTraceStart = Tracer.now();
 
         mainThread.postDelayed(new Runnable() {
             public void run() {
+                Tracer.getInstance().complete("Wake delay", delayTraceStart);
                 onStartup();
             }
         }, delay);
     }
 
-    public void onPowerDisconnected() {
+    private void commitPowerDisconnected() {
+        Tracer.getInstance().startRun(context, "POWER_DISCONNECTED");
         Logger.log(TAG, "Power disconnected");
+        resumeFromJournal = false;
 
         if (wakeLock != null) {
             Logger.log(TAG, "Releasing wakelock");
             releaseWakeLock();
         }
 
+        wakeDelayEstimator.stop();
+
         playbackController.onPowerDisconnected();
         navigationAppController.onPowerDisconnected();
         driversController.onPowerDisconnected();
 
-        onSuspend();
+        int gracePeriod = getWarmSuspendGracePeriod();
+        if (gracePeriod > 0 && lastState == STATE_START_ROUTINE_RUN) {
+            startWarmSuspend(gracePeriod);
+        } else {
+            onSuspend();
+        }
+    }
+
+    /**
+     * Called when the device has finished booting, before the service is started
+     */
+    public static void onBootCompleted(Context context) {
+        RoutineJournal.onBootCompleted(context);
+    }
+
+    /**
+     * Called when the service is restarted after the process was killed, to carry on
+     * with the routine which was running
+     */
+    public void onRestarted() {
+        if (PowerUtil.isConnected(context)) {
+            // Resumes the wake routine from the journal once power settles
+            resumeFromJournal = true;
+            onPowerConnected();
+        } else if (lastState == STATE_STOP_ROUTINE_RUN &&
+                RoutineJournal.STATE_SUSPEND.equals(routineJournal.getLastState())) {
+            Logger.log(TAG, "Suspend: Resuming timeline after restart");
+            powerStateMachine.onPowerEvent(false);
+            startSuspendTimeline(
+                    routineJournal.getLastStateTime(),
+                    routineJournal.getCompletedSteps()
+            );
+        } else {
+            onPowerDisconnected();
+        }
     }
 
     public void destroy() {
+        powerStateMachine.cancel();
+        suspendTimeline.destroy();
+        routineJournal.destroy();
+        cancelWarmSuspend();
+        context.unregisterReceiver(warmSuspendExpiredReceiver);
+
+        wakeTaskGraph.destroy();
+        wakeDelayEstimator.stop();
         driversController.destroy();
         navigationAppController.destroy();
         playbackController.destroy();
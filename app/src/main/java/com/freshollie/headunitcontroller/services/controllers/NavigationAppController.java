@@ -1,15 +1,10 @@
 package com.freshollie.headunitcontroller.services.controllers;
 
-import android.app.AlarmManager;
-import android.app.PendingIntent;
-import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.net.Uri;
 import android.os.Handler;
-import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.util.Log;
 
@@ -19,8 +14,6 @@ import com.freshollie.headunitcontroller.util.PowerUtil;
 import com.freshollie.headunitcontroller.util.SuperuserManager;
 import com.rvalerio.fgchecker.AppChecker;
 
-import static android.content.Context.ALARM_SERVICE;
-
 /**
  * Created by freshollie on 03.12.17.
  */
@@ -28,18 +21,8 @@ import static android.content.Context.ALARM_SERVICE;
 public class NavigationAppController {
     private static final String TAG = NavigationAppController.class.getSimpleName();
 
-    // 5 minutes
-    private static final int DELAY_BEFORE_STOP_MAPS_NAVIGATION_MS = 300000;
-    private static final String STOP_MAPS_NAVIGATION =
-            "com.freshollie.headunitcontroller.action.STOP_MAPS_NAVIGATION";
-    private final BroadcastReceiver stopNavigationReceiver = new BroadcastReceiver() {
-        @Override
-        public void onReceive(Context context, Intent intent) {
-            if (!PowerUtil.isConnected(context)) {
-                stopMapsNavigation();
-            }
-        }
-    };
+    // 5 minutes, run from the suspend timeline
+    static final int DELAY_BEFORE_STOP_MAPS_NAVIGATION_MS = 300000;
 
     public static final String GOOGLE_MAPS_PACKAGE_ID = "com.google.android.apps.maps";
     private static final String GOOGLE_MAPS_SERVICE_STOP_COMMAND =
@@ -53,11 +36,8 @@ public class NavigationAppController {
     private final Handler mainThread;
     private final SharedPreferences sharedPreferences;
 
-    private final AlarmManager alarmManager;
     private final SuperuserManager superuserManager;
 
-    private PendingIntent stopNavigationPendingIntent;
-
     private final AppChecker mapsForegroundChecker = new AppChecker()
             .when(GOOGLE_MAPS_PACKAGE_ID, new AppChecker.Listener() {
                 @Override
@@ -100,14 +80,7 @@ public class NavigationAppController {
         sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
         mainThread = new Handler(serviceContext.getMainLooper());
 
-        alarmManager = (AlarmManager) context.getSystemService(ALARM_SERVICE);
         superuserManager = SuperuserManager.getInstance();
-
-        stopNavigationPendingIntent = PendingIntent.getBroadcast(context, 0,
-                new Intent(STOP_MAPS_NAVIGATION),
-                PendingIntent.FLAG_UPDATE_CURRENT);
-
-        context.registerReceiver(stopNavigationReceiver, new IntentFilter(STOP_MAPS_NAVIGATION));
     }
 
     private void startMapsForegroundChecker() {
@@ -134,18 +107,6 @@ public class NavigationAppController {
         );
     }
 
-    private void scheduleStopMapsNavigation() {
-        navigationStopped = false;
-        long time = SystemClock.elapsedRealtime() + DELAY_BEFORE_STOP_MAPS_NAVIGATION_MS;
-
-        alarmManager.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, time, stopNavigationPendingIntent);
-    }
-
-    private void cancelStopMapsNavigation() {
-        Log.d(TAG, "Cancelling stop navigation alarm");
-        alarmManager.cancel(stopNavigationPendingIntent);
-    }
-
     private void stopMapsNavigation() {
         Log.d(TAG, "Stopping navigation");
         navigationStopped = true;
@@ -186,10 +147,27 @@ public class NavigationAppController {
         }
     }
 
+    boolean shouldStopNavigation() {
+        return sharedPreferences.getBoolean(
+                context.getString(R.string.pref_stop_navigation_key),
+                true
+        );
+    }
+
+    /**
+     * Stop navigation if it was left running when we suspended
+     */
+    void stopNavigation() {
+        if (!navigationStopped) {
+            stopMapsNavigation();
+        }
+    }
+
     public void onSuspend() {
-        if (sharedPreferences.getBoolean(context.getString(R.string.pref_stop_navigation_key), true)) {
-            Logger.log(TAG, "Suspend: Scheduling maps to stop");
-            scheduleStopMapsNavigation();
+        if (shouldStopNavigation()) {
+            Logger.log(TAG, "Suspend: Maps will be stopped in " +
+                    DELAY_BEFORE_STOP_MAPS_NAVIGATION_MS / 60000 + " minutes");
+            navigationStopped = false;
         }
     }
 
@@ -198,8 +176,6 @@ public class NavigationAppController {
             Logger.log(TAG, "Starting maps foreground checker");
             startMapsForegroundChecker();
         }
-
-        cancelStopMapsNavigation();
     }
 
     public void onPowerDisconnected() {
@@ -208,6 +184,6 @@ public class NavigationAppController {
     }
 
     public void destroy() {
-        context.unregisterReceiver(stopNavigationReceiver);
+
     }
 }
@@ -21,6 +21,8 @@ import com.freshollie.headunitcontroller.util.SuperuserManager;
 public class PlaybackController {
     private static final String TAG = PlaybackController.class.getSimpleName();
 
+    private static final int DEFAULT_VOLUME_LEVEL = 13;
+
     private static final String APPLE_MUSIC_PACKAGE_ID = "com.apple.android.music";
     private static final String APPLE_MUSIC_PLAY_ACTION_COMMAND =
             "am startservice " +
@@ -59,16 +61,29 @@ public class PlaybackController {
     }
 
     private void raiseVolume() {
-        int volume = Integer.valueOf(
-                sharedPreferences.getString(
-                        context.getString(R.string.pref_volume_level_key),
-                        "13"
-                )
-        );
+        raiseVolume(context, sharedPreferences);
+    }
+
+    /**
+     * Raise the music stream to the volume level from the given preferences
+     */
+    public static void raiseVolume(Context context, SharedPreferences sharedPreferences) {
+        int volume;
+        try {
+            volume = Integer.valueOf(
+                    sharedPreferences.getString(
+                            context.getString(R.string.pref_volume_level_key),
+                            String.valueOf(DEFAULT_VOLUME_LEVEL)
+                    )
+            );
+        } catch (NumberFormatException e) {
+            volume = DEFAULT_VOLUME_LEVEL;
+        }
 
         Log.d(TAG, "Raising system volume to " + volume);
 
-        audioManager.setStreamVolume(AudioManager.STREAM_MUSIC, volume, 0);
+        ((AudioManager) context.getSystemService(Context.AUDIO_SERVICE))
+                .setStreamVolume(AudioManager.STREAM_MUSIC, volume, 0);
     }
 
 
@@ -119,7 +134,10 @@ public class PlaybackController {
         }
     }
 
-    public void onStartup() {
+    /**
+     * Raise the volume, if it is set to. Can be run on any thread.
+     */
+    public void setVolume() {
         if (!sharedPreferences.getBoolean(
                 context.getString(R.string.pref_debug_enabled_key),
                 false) &&
@@ -130,7 +148,13 @@ public class PlaybackController {
             Logger.log(TAG, "StartUp: Setting Volume");
             raiseVolume();
         }
+    }
 
+    /**
+     * Play the last media app, if it is set to. This should be run after the volume
+     * has been set, and can be run on any thread.
+     */
+    public void resumeMedia() {
         if (sharedPreferences.getBoolean(
                 context.getString(R.string.pref_play_media_key), true)) {
             Logger.log(TAG, "StartUp: playing last media");
@@ -138,12 +162,33 @@ public class PlaybackController {
         }
     }
 
+    boolean shouldPauseMedia() {
+        return sharedPreferences.getBoolean(
+                context.getString(R.string.pref_pause_media_key),
+                true
+        );
+    }
+
+    /**
+     * Pause whichever app is playing, for kernels which don't stop music on suspend.
+     * The last playing app is not forgotten, as it is only recorded while power is connected.
+     */
+    void pauseMedia() {
+        long eventTime = SystemClock.uptimeMillis();
+
+        audioManager.dispatchMediaKeyEvent(new KeyEvent(eventTime, eventTime,
+                KeyEvent.ACTION_DOWN, KeyEvent.KEYCODE_MEDIA_PAUSE, 0));
+        audioManager.dispatchMediaKeyEvent(new KeyEvent(eventTime, eventTime,
+                KeyEvent.ACTION_UP, KeyEvent.KEYCODE_MEDIA_PAUSE, 0));
+    }
+
     public void onSuspend() {
-        // Here we would stop music, but this is handled by timurs kernel
+        // Pausing music is a step in the suspend timeline
     }
 
     public void onPowerConnected() {
-        if (sharedPreferences.getBoolean(context.getString(R.string.pref_blank_audio_key), true)) {
+        if (sharedPreferences.getBoolean(context.getString(R.string.pref_blank_audio_key), true) &&
+                !mediaPlayer.isPlaying()) {
             Logger.log(TAG, "Starting blank audio");
             startBlankAudio();
         }
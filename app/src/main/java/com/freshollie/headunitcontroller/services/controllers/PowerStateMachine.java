@@ -0,0 +1,202 @@
+package com.freshollie.headunitcontroller.services.controllers;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.os.BatteryManager;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import com.freshollie.headunitcontroller.R;
+import com.freshollie.headunitcontroller.util.Logger;
+import com.freshollie.headunitcontroller.util.PowerUtil;
+
+/**
+ * Debounces the power broadcasts, which flap on and off while the engine is cranking.
+ *
+ * Each broadcast only starts a settle timer, and when it fires the power state at that
+ * moment is committed if it is different from the last committed state. A flap which has
+ * settled back by then is ignored.
+ *
+ * Power being connected settles quickly, as the wake routine waits anyway. Power being
+ * lost waits for the settle time from the preferences, with a separate, longer one for
+ * USB supplies, which brown out for longer during a crank. It is extended when cranking is
+ * likely: just after power was connected, or when the battery voltage has sagged since
+ * power was connected.
+ */
+public class PowerStateMachine {
+    private static final String TAG = PowerStateMachine.class.getSimpleName();
+
+    private static final int CONNECT_SETTLE_TIME = 300; // Milliseconds
+    private static final int DEFAULT_SETTLE_TIME = 1500; // Milliseconds
+    private static final int DEFAULT_USB_SETTLE_TIME = 4500; // Milliseconds
+
+    private static final int CRANKING_WINDOW = 15000; // Milliseconds
+    private static final int CRANKING_SETTLE_MULTIPLIER = 3;
+    private static final int VOLTAGE_SAG = 200; // Millivolts
+
+    private static final int STATE_UNKNOWN = -1;
+    private static final int STATE_DISCONNECTED = 0;
+    private static final int STATE_CONNECTED = 1;
+
+    public interface OnPowerStateChangedListener {
+        void onPowerConnected();
+        void onPowerDisconnected();
+
+        /**
+         * Called when power has settled back to the committed state
+         */
+        void onFlapIgnored(boolean connected);
+    }
+
+    private final Context context;
+    private final Handler handler;
+    private final SharedPreferences sharedPreferences;
+    private final OnPowerStateChangedListener listener;
+
+    private int committedState = STATE_UNKNOWN;
+    private long settleStartTime;
+    private boolean settling = false;
+
+    private long connectedTime;
+    private int connectedPlugType;
+    private int connectedVoltage;
+
+    private final Runnable settleRunnable = new Runnable() {
+        @Override
+        public void run() {
+            settled();
+        }
+    };
+
+    public PowerStateMachine(Context context, Handler handler, OnPowerStateChangedListener listener) {
+        this.context = context;
+        this.handler = handler;
+        this.listener = listener;
+        sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+    }
+
+    /**
+     * Called for every power broadcast. Must be called on the handler's thread.
+     */
+    public void onPowerEvent(boolean connected) {
+        // Nothing to debounce against yet, so trust the first event
+        if (committedState == STATE_UNKNOWN) {
+            commit(connected);
+            return;
+        }
+
+        if (!settling) {
+            settling = true;
+            settleStartTime = SystemClock.elapsedRealtime();
+        }
+
+        int settleTime = connected ? CONNECT_SETTLE_TIME : getDisconnectSettleTime();
+
+        handler.removeCallbacks(settleRunnable);
+        handler.postDelayed(settleRunnable, settleTime);
+    }
+
+    /**
+     * @return whether power connected is the committed state
+     */
+    boolean isConnected() {
+        return committedState == STATE_CONNECTED;
+    }
+
+    public void cancel() {
+        handler.removeCallbacks(settleRunnable);
+        settling = false;
+    }
+
+    private void settled() {
+        settling = false;
+
+        boolean connected = PowerUtil.isConnected(context);
+
+        if ((connected ? STATE_CONNECTED : STATE_DISCONNECTED) == committedState) {
+            Logger.log(TAG, "Power: Ignored a " +
+                    (SystemClock.elapsedRealtime() - settleStartTime) + "ms flap");
+            listener.onFlapIgnored(connected);
+            return;
+        }
+
+        commit(connected);
+    }
+
+    private void commit(boolean connected) {
+        committedState = connected ? STATE_CONNECTED : STATE_DISCONNECTED;
+
+        if (connected) {
+            Intent battery = getBatteryStatus();
+            connectedTime = SystemClock.elapsedRealtime();
+            connectedPlugType = battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, -1);
+            connectedVoltage = battery.getIntExtra(BatteryManager.EXTRA_VOLTAGE, -1);
+
+            listener.onPowerConnected();
+        } else {
+            listener.onPowerDisconnected();
+        }
+    }
+
+    private int getDisconnectSettleTime() {
+        int settleTime;
+        if (connectedPlugType == BatteryManager.BATTERY_PLUGGED_USB) {
+            settleTime = getSettleTimePreference(
+                    R.string.pref_usb_power_settle_time_key,
+                    DEFAULT_USB_SETTLE_TIME
+            );
+        } else {
+            settleTime = getSettleTimePreference(
+                    R.string.pref_power_settle_time_key,
+                    DEFAULT_SETTLE_TIME
+            );
+        }
+
+        String crankingReason = getCrankingReason();
+        if (crankingReason != null) {
+            settleTime *= CRANKING_SETTLE_MULTIPLIER;
+            Logger.log(TAG, "Power: Waiting " + settleTime + "ms to settle, " + crankingReason);
+        } else {
+            Log.d(TAG, "Waiting " + settleTime + "ms to settle");
+        }
+
+        return settleTime;
+    }
+
+    private int getSettleTimePreference(int keyId, int defaultValue) {
+        try {
+            return Integer.valueOf(
+                    sharedPreferences.getString(
+                            context.getString(keyId),
+                            String.valueOf(defaultValue)
+                    )
+            );
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * @return why cranking is likely, or null if it isn't
+     */
+    private String getCrankingReason() {
+        if (SystemClock.elapsedRealtime() - connectedTime < CRANKING_WINDOW) {
+            return "power was only just connected";
+        }
+
+        int voltage = getBatteryStatus().getIntExtra(BatteryManager.EXTRA_VOLTAGE, -1);
+        if (connectedVoltage > 0 && voltage > 0 && connectedVoltage - voltage > VOLTAGE_SAG) {
+            return "voltage sagged to " + voltage + "mV";
+        }
+
+        return null;
+    }
+
+    private Intent getBatteryStatus() {
+        return context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+    }
+}
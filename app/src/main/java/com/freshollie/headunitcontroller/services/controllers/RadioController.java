@@ -0,0 +1,113 @@
+package com.freshollie.headunitcontroller.services.controllers;
+
+import android.bluetooth.BluetoothAdapter;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.wifi.WifiManager;
+import android.preference.PreferenceManager;
+import android.text.TextUtils;
+
+import com.freshollie.headunitcontroller.R;
+import com.freshollie.headunitcontroller.util.Logger;
+import com.freshollie.headunitcontroller.util.SuperuserManager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Turns off the radios after a long suspend to save the car battery, and turns back on
+ * the ones we turned off when power returns. The radios we turned off are saved, so they
+ * are still turned back on if the service was killed in between.
+ */
+class RadioController {
+    private static final String TAG = RadioController.class.getSimpleName();
+
+    private static final String RADIO_WIFI = "wifi";
+    private static final String RADIO_BLUETOOTH = "bluetooth";
+
+    private final Context context;
+    private final SharedPreferences sharedPreferences;
+    private final SuperuserManager superuserManager;
+    private final WifiManager wifiManager;
+    private final BluetoothAdapter bluetoothAdapter;
+
+    RadioController(Context context) {
+        this.context = context;
+        sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+        superuserManager = SuperuserManager.getInstance();
+        wifiManager = (WifiManager) context.getApplicationContext()
+                .getSystemService(Context.WIFI_SERVICE);
+        bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+    }
+
+    boolean shouldDisableRadios() {
+        return sharedPreferences.getBoolean(
+                context.getString(R.string.pref_disable_radios_key),
+                false
+        );
+    }
+
+    void disableRadios() {
+        ArrayList<String> disabled = new ArrayList<>(getDisabledRadios());
+
+        if (wifiManager != null && wifiManager.isWifiEnabled() &&
+                superuserManager.hasPermission()) {
+            superuserManager.asyncExecuteAwake(context, "svc wifi disable");
+            if (!disabled.contains(RADIO_WIFI)) {
+                disabled.add(RADIO_WIFI);
+            }
+        }
+
+        if (bluetoothAdapter != null && bluetoothAdapter.isEnabled()) {
+            bluetoothAdapter.disable();
+            if (!disabled.contains(RADIO_BLUETOOTH)) {
+                disabled.add(RADIO_BLUETOOTH);
+            }
+        }
+
+        Logger.log(TAG, "Suspend: Turned off " + disabled);
+        saveDisabledRadios(disabled);
+    }
+
+    /**
+     * Turn back on the radios which we turned off
+     */
+    void restoreRadios() {
+        List<String> disabled = getDisabledRadios();
+        if (disabled.isEmpty()) {
+            return;
+        }
+
+        if (disabled.contains(RADIO_WIFI)) {
+            superuserManager.asyncExecute("svc wifi enable");
+        }
+
+        if (disabled.contains(RADIO_BLUETOOTH) && bluetoothAdapter != null) {
+            bluetoothAdapter.enable();
+        }
+
+        Logger.log(TAG, "StartUp: Turned on " + disabled);
+        saveDisabledRadios(new ArrayList<String>());
+    }
+
+    private List<String> getDisabledRadios() {
+        String disabled = sharedPreferences.getString(
+                context.getString(R.string.disabled_radios_key),
+                ""
+        );
+
+        if (disabled.isEmpty()) {
+            return new ArrayList<>();
+        }
+        return Arrays.asList(disabled.split(","));
+    }
+
+    private void saveDisabledRadios(List<String> disabled) {
+        sharedPreferences
+                .edit()
+                .putString(context.getString(R.string.disabled_radios_key),
+                        TextUtils.join(",", disabled))
+                .apply();
+    }
+}
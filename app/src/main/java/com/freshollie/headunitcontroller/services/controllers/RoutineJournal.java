@@ -0,0 +1,248 @@
+package com.freshollie.headunitcontroller.services.controllers;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.provider.Settings;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An append-only journal of the routine state and the steps completed since, so that if
+ * the process is killed mid-drive the controller can carry on from where it was instead
+ * of rerunning or skipping routines.
+ *
+ * Each line is "elapsedRealtime bootCount STATE name" or "elapsedRealtime bootCount STEP name".
+ * Writes are appended on a background thread, and state changes are synced to disk. When
+ * the journal gets too long it is compacted down to the last state when the next state
+ * is recorded.
+ *
+ * Entries from a previous boot are ignored. Boots are told apart by the system boot count
+ * rather than the wall clock, which jumps when head units without a clock battery get the
+ * time from the network. Where there is no boot count the journal is cleared on boot.
+ */
+class RoutineJournal {
+    private static final String TAG = RoutineJournal.class.getSimpleName();
+
+    static final String STATE_NONE = "";
+    static final String STATE_WAKE = "WAKE";
+    static final String STATE_SUSPEND = "SUSPEND";
+
+    private static final String ENTRY_STATE = "STATE";
+    private static final String ENTRY_STEP = "STEP";
+
+    private static final String JOURNAL_FILE = "routine.journal";
+    private static final int MAX_LINES = 200;
+
+    private static final int NO_BOOT_COUNT = -1;
+
+    private final File journalFile;
+    private final int bootCount;
+    private final Handler writeThread;
+
+    private String lastState = STATE_NONE;
+    private long lastStateTime;
+    private final ArrayList<String> completedSteps = new ArrayList<>();
+    private int numLines = 0;
+
+    RoutineJournal(Context context) {
+        journalFile = getJournalFile(context);
+        bootCount = getBootCount(context);
+
+        HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        writeThread = new Handler(thread.getLooper());
+
+        restore();
+    }
+
+    private static File getJournalFile(Context context) {
+        return new File(context.getFilesDir(), JOURNAL_FILE);
+    }
+
+    private static int getBootCount(Context context) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            return Settings.Global.getInt(
+                    context.getContentResolver(),
+                    Settings.Global.BOOT_COUNT,
+                    NO_BOOT_COUNT
+            );
+        }
+        return NO_BOOT_COUNT;
+    }
+
+    /**
+     * Called on boot completed. Clears the journal if the boot count can't be used to
+     * ignore the entries from the previous boot.
+     */
+    static void onBootCompleted(Context context) {
+        if (getBootCount(context) == NO_BOOT_COUNT && getJournalFile(context).delete()) {
+            Log.d(TAG, "Cleared journal from the previous boot");
+        }
+    }
+
+    /**
+     * Read back the last state, and the steps completed since it, from this boot
+     */
+    private void restore() {
+        if (!journalFile.exists()) {
+            return;
+        }
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(journalFile));
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                numLines++;
+
+                String[] entry = line.split(" ", 4);
+                if (entry.length < 4) {
+                    // Probably a write cut short by the process being killed
+                    Log.d(TAG, "Ignoring incomplete entry: " + line);
+                    continue;
+                }
+
+                try {
+                    if (Long.parseLong(entry[1]) != bootCount) {
+                        continue;
+                    }
+
+                    if (ENTRY_STATE.equals(entry[2])) {
+                        lastState = entry[3];
+                        lastStateTime = Long.parseLong(entry[0]);
+                        completedSteps.clear();
+                    } else if (ENTRY_STEP.equals(entry[2])) {
+                        completedSteps.add(entry[3]);
+                    }
+                } catch (NumberFormatException e) {
+                    Log.d(TAG, "Ignoring bad entry: " + line);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading journal", e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        Log.d(TAG, "Restored state '" + lastState + "' with steps " + completedSteps);
+    }
+
+    /**
+     * @return the last state recorded in this boot, or {@link #STATE_NONE}
+     */
+    String getLastState() {
+        return lastState;
+    }
+
+    /**
+     * @return the elapsedRealtime when the last state was recorded
+     */
+    long getLastStateTime() {
+        return lastStateTime;
+    }
+
+    /**
+     * @return the steps completed since the last state was recorded
+     */
+    List<String> getCompletedSteps() {
+        return new ArrayList<>(completedSteps);
+    }
+
+    void recordState(String state) {
+        lastState = state;
+        lastStateTime = SystemClock.elapsedRealtime();
+        completedSteps.clear();
+
+        final String line = formatEntry(ENTRY_STATE, state);
+
+        if (numLines >= MAX_LINES) {
+            numLines = 1;
+            writeThread.post(new Runnable() {
+                @Override
+                public void run() {
+                    compact(line);
+                }
+            });
+        } else {
+            append(line, true);
+        }
+    }
+
+    void recordStep(String step) {
+        completedSteps.add(step);
+        append(formatEntry(ENTRY_STEP, step), false);
+    }
+
+    private String formatEntry(String type, String name) {
+        return lastStateTime + " " + bootCount + " " + type + " " + name + "\n";
+    }
+
+    private void append(final String line, final boolean sync) {
+        numLines++;
+
+        writeThread.post(new Runnable() {
+            @Override
+            public void run() {
+                write(journalFile, line, true, sync);
+            }
+        });
+    }
+
+    /**
+     * Replace the journal with just the given line. The new journal is written next to
+     * the old one and then renamed over it, so a kill part way through loses nothing.
+     */
+    private void compact(String line) {
+        File compactedFile = new File(journalFile.getPath() + ".tmp");
+
+        if (write(compactedFile, line, false, true) && !compactedFile.renameTo(journalFile)) {
+            Log.e(TAG, "Could not replace journal");
+        }
+    }
+
+    private static boolean write(File file, String line, boolean append, boolean sync) {
+        FileOutputStream outputStream = null;
+        try {
+            outputStream = new FileOutputStream(file, append);
+            outputStream.write(line.getBytes());
+
+            if (sync) {
+                outputStream.getFD().sync();
+            }
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing journal", e);
+            return false;
+        } finally {
+            if (outputStream != null) {
+                try {
+                    outputStream.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    void destroy() {
+        writeThread.getLooper().quitSafely();
+    }
+}
@@ -0,0 +1,234 @@
+package com.freshollie.headunitcontroller.services.controllers;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Build;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.freshollie.headunitcontroller.util.Logger;
+import com.freshollie.headunitcontroller.util.PowerUtil;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * Runs the suspend steps at their offsets from the start of suspend, for example stopping
+ * navigation after 5 minutes. All of the steps share one alarm, which is re-armed for the
+ * next step each time it fires, so the unit is only woken when a step is due.
+ *
+ * The steps which haven't run are cancelled when power returns, and what ran is logged.
+ */
+class SuspendTimeline {
+    private static final String TAG = SuspendTimeline.class.getSimpleName();
+
+    private static final String ACTION_SUSPEND_STEP_DUE =
+            "com.freshollie.headunitcontroller.action.SUSPEND_STEP_DUE";
+
+    // Only held while steps run, as steps which hand work to a shell hold their own
+    private static final int STEP_WAKELOCK_TIMEOUT = 10000; // Milliseconds
+
+    interface OnStepRunListener {
+        void onStepRun(String name);
+    }
+
+    abstract static class Step {
+        private final String name;
+        private final long offset;
+
+        /**
+         * @param offset milliseconds after the start of suspend to run the step
+         */
+        Step(String name, long offset) {
+            this.name = name;
+            this.offset = offset;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        /**
+         * Steps which are turned off in the preferences are left out of the timeline
+         */
+        boolean isEnabled() {
+            return true;
+        }
+
+        abstract void run();
+    }
+
+    private final Context context;
+    private final AlarmManager alarmManager;
+    private final PowerManager powerManager;
+    private final PendingIntent stepDuePendingIntent;
+
+    private final ArrayList<Step> pendingSteps = new ArrayList<>();
+    private final ArrayList<String> ranSteps = new ArrayList<>();
+    private long suspendTime;
+
+    private OnStepRunListener stepRunListener;
+
+    private final BroadcastReceiver stepDueReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (PowerUtil.isConnected(context)) {
+                Log.d(TAG, "Step due with power connected, ignoring");
+                return;
+            }
+
+            runDueSteps();
+        }
+    };
+
+    SuspendTimeline(Context context) {
+        this.context = context;
+        alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+
+        stepDuePendingIntent = PendingIntent.getBroadcast(context, 0,
+                new Intent(ACTION_SUSPEND_STEP_DUE).setPackage(context.getPackageName()),
+                PendingIntent.FLAG_UPDATE_CURRENT);
+
+        context.registerReceiver(
+                stepDueReceiver,
+                new IntentFilter(ACTION_SUSPEND_STEP_DUE),
+                MainController.INTERNAL_BROADCAST_PERMISSION,
+                null
+        );
+    }
+
+    void setOnStepRunListener(OnStepRunListener listener) {
+        stepRunListener = listener;
+    }
+
+    /**
+     * Start the timeline from now, running the steps which are due straight away.
+     * Must be called on the main thread.
+     */
+    void start(Step... steps) {
+        start(SystemClock.elapsedRealtime(), Collections.<String>emptyList(), steps);
+    }
+
+    /**
+     * Carry on a timeline which was started at the given elapsedRealtime, leaving out
+     * the steps which have already run
+     */
+    void start(long startTime, Collection<String> alreadyRan, Step... steps) {
+        cancel();
+
+        suspendTime = startTime;
+        ranSteps.clear();
+        ranSteps.addAll(alreadyRan);
+
+        for (Step step: steps) {
+            if (step.isEnabled() && !alreadyRan.contains(step.getName())) {
+                pendingSteps.add(step);
+            }
+        }
+
+        Collections.sort(pendingSteps, new Comparator<Step>() {
+            @Override
+            public int compare(Step a, Step b) {
+                return Long.compare(a.offset, b.offset);
+            }
+        });
+
+        runDueSteps();
+    }
+
+    /**
+     * Cancel the steps which haven't run yet, and report what did
+     */
+    void cancel() {
+        alarmManager.cancel(stepDuePendingIntent);
+
+        if (pendingSteps.isEmpty()) {
+            return;
+        }
+
+        String[] cancelled = new String[pendingSteps.size()];
+        for (int i = 0; i < cancelled.length; i++) {
+            cancelled[i] = pendingSteps.get(i).getName();
+        }
+        pendingSteps.clear();
+
+        Logger.log(TAG, "Suspend: Timeline cancelled after " + getElapsed() / 1000 + "s, " +
+                "ran [" + TextUtils.join(", ", ranSteps) + "], " +
+                "cancelled [" + TextUtils.join(", ", Arrays.asList(cancelled)) + "]");
+    }
+
+    void destroy() {
+        cancel();
+        context.unregisterReceiver(stepDueReceiver);
+    }
+
+    private long getElapsed() {
+        return SystemClock.elapsedRealtime() - suspendTime;
+    }
+
+    private void runDueSteps() {
+        PowerManager.WakeLock wakeLock = null;
+
+        try {
+            while (!pendingSteps.isEmpty() && pendingSteps.get(0).offset <= getElapsed()) {
+                if (wakeLock == null) {
+                    wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
+                    wakeLock.acquire(STEP_WAKELOCK_TIMEOUT);
+                }
+
+                Step step = pendingSteps.remove(0);
+
+                Logger.log(TAG, "Suspend: Running " + step.getName() + " at +" +
+                        getElapsed() / 1000 + "s");
+                try {
+                    step.run();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Error running " + step.getName(), e);
+                }
+
+                ranSteps.add(step.getName());
+
+                if (stepRunListener != null) {
+                    stepRunListener.onStepRun(step.getName());
+                }
+            }
+        } finally {
+            if (wakeLock != null && wakeLock.isHeld()) {
+                wakeLock.release();
+            }
+        }
+
+        if (pendingSteps.isEmpty()) {
+            if (!ranSteps.isEmpty()) {
+                Logger.log(TAG, "Suspend: Timeline complete, ran [" +
+                        TextUtils.join(", ", ranSteps) + "]");
+            }
+        } else {
+            armAlarm(suspendTime + pendingSteps.get(0).offset);
+        }
+    }
+
+    private void armAlarm(long time) {
+        Log.d(TAG, "Next step due in " + (time - SystemClock.elapsedRealtime()) + "ms");
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            alarmManager.setAndAllowWhileIdle(
+                    AlarmManager.ELAPSED_REALTIME_WAKEUP,
+                    time,
+                    stepDuePendingIntent
+            );
+        } else {
+            alarmManager.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, time, stepDuePendingIntent);
+        }
+    }
+}
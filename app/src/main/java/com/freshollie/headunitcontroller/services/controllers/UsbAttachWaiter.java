@@ -0,0 +1,212 @@
+package com.freshollie.headunitcontroller.services.controllers;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbManager;
+import android.os.Handler;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * Waits for USB devices to be attached, either specific devices or a number of devices.
+ * The device list is only checked when a device attaches, so nothing runs while we wait,
+ * and each timeout is a real time deadline on the handler.
+ *
+ * Devices are identified by their vendor and product id packed into one int,
+ * see getDeviceId().
+ */
+class UsbAttachWaiter {
+    private static final String TAG = UsbAttachWaiter.class.getSimpleName();
+
+    static final int NO_DEVICE = -1;
+
+    interface OnAttachedListener {
+        void onAttached();
+
+        /**
+         * Called before onAttached if the devices did not attach in time
+         */
+        void onTimedOut();
+    }
+
+    private class Wait implements Runnable {
+        final int[] deviceIds;
+        final int numDevices;
+        final OnAttachedListener listener;
+
+        Wait(int[] deviceIds, int numDevices, OnAttachedListener listener) {
+            this.deviceIds = deviceIds;
+            this.numDevices = numDevices;
+            this.listener = listener;
+        }
+
+        boolean isSatisfied() {
+            if (deviceIds != null) {
+                for (int deviceId: deviceIds) {
+                    if (!isDeviceAttached(deviceId)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            return usbManager.getDeviceList().size() >= numDevices;
+        }
+
+        /**
+         * Timed out
+         */
+        @Override
+        public void run() {
+            finish(this);
+            listener.onTimedOut();
+            listener.onAttached();
+        }
+    }
+
+    private final Context context;
+    private final Handler handler;
+    private final UsbManager usbManager;
+
+    private final ArrayList<Wait> waits = new ArrayList<>();
+
+    private final BroadcastReceiver attachReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            UsbDevice device = intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
+            if (device != null) {
+                Log.d(TAG, "Attached " +
+                        formatDeviceId(getDeviceId(device.getVendorId(), device.getProductId())));
+            }
+            checkWaits();
+        }
+    };
+
+    UsbAttachWaiter(Context context, Handler handler) {
+        this.context = context;
+        this.handler = handler;
+        usbManager = (UsbManager) context.getSystemService(Context.USB_SERVICE);
+    }
+
+    static int getDeviceId(int vendorId, int productId) {
+        return (vendorId << 16) | (productId & 0xFFFF);
+    }
+
+    /**
+     * @return the device id as "vvvv:pppp" in hex, as shown by lsusb
+     */
+    static String formatDeviceId(int deviceId) {
+        return String.format(Locale.US, "%04x:%04x", deviceId >>> 16, deviceId & 0xFFFF);
+    }
+
+    /**
+     * @return the device id for a "vvvv:pppp" string, or NO_DEVICE if it is not valid
+     */
+    static int parseDeviceId(String deviceId) {
+        if (deviceId == null) {
+            return NO_DEVICE;
+        }
+
+        String[] parts = deviceId.trim().split(":");
+        if (parts.length != 2) {
+            return NO_DEVICE;
+        }
+
+        try {
+            int vendorId = Integer.parseInt(parts[0].trim(), 16);
+            int productId = Integer.parseInt(parts[1].trim(), 16);
+
+            if (vendorId < 0 || vendorId > 0xFFFF || productId < 0 || productId > 0xFFFF) {
+                return NO_DEVICE;
+            }
+            return getDeviceId(vendorId, productId);
+        } catch (NumberFormatException e) {
+            return NO_DEVICE;
+        }
+    }
+
+    boolean isDeviceAttached(int deviceId) {
+        for (UsbDevice device: usbManager.getDeviceList().values()) {
+            if (getDeviceId(device.getVendorId(), device.getProductId()) == deviceId) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Wait for the given device to be attached. The listener is called on the
+     * handler's thread, straight away if the device is already attached.
+     */
+    void awaitDevice(int deviceId, long timeout, OnAttachedListener listener) {
+        await(new Wait(new int[] {deviceId}, 0, listener), timeout);
+    }
+
+    /**
+     * Wait for all of the given devices to be attached
+     */
+    void awaitDevices(int[] deviceIds, long timeout, OnAttachedListener listener) {
+        await(new Wait(deviceIds, 0, listener), timeout);
+    }
+
+    /**
+     * Wait for at least the given number of devices to be attached
+     */
+    void awaitDeviceCount(int numDevices, long timeout, OnAttachedListener listener) {
+        await(new Wait(null, numDevices, listener), timeout);
+    }
+
+    private void await(Wait wait, long timeout) {
+        // Devices may have attached before we started listening
+        if (wait.isSatisfied()) {
+            wait.listener.onAttached();
+            return;
+        }
+
+        if (waits.isEmpty()) {
+            context.registerReceiver(
+                    attachReceiver,
+                    new IntentFilter(UsbManager.ACTION_USB_DEVICE_ATTACHED),
+                    null,
+                    handler
+            );
+        }
+
+        waits.add(wait);
+        handler.postDelayed(wait, timeout);
+    }
+
+    /**
+     * Stop all waits without calling their listeners
+     */
+    void cancel() {
+        for (Wait wait: new ArrayList<>(waits)) {
+            finish(wait);
+        }
+    }
+
+    boolean isWaiting() {
+        return !waits.isEmpty();
+    }
+
+    private void checkWaits() {
+        for (Wait wait: new ArrayList<>(waits)) {
+            if (waits.contains(wait) && wait.isSatisfied()) {
+                finish(wait);
+                wait.listener.onAttached();
+            }
+        }
+    }
+
+    private void finish(Wait wait) {
+        handler.removeCallbacks(wait);
+
+        if (waits.remove(wait) && waits.isEmpty()) {
+            context.unregisterReceiver(attachReceiver);
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package com.freshollie.headunitcontroller.services.controllers;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbManager;
+import android.preference.PreferenceManager;
+
+import com.freshollie.headunitcontroller.R;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * The set of USB devices seen on recent wakes, saved as "vvvv:pppp,vvvv:pppp/2", where the
+ * number after a slash is how many wakes in a row the device has been absent.
+ *
+ * On wake, the live devices are compared against the snapshot, so we can stop waiting as
+ * soon as every expected device is present, and say exactly which devices are missing
+ * if they don't all turn up.
+ *
+ * Every device seen at any point during the wake is recorded, and the snapshot is saved
+ * from all of them at the end of the wake, so a device which is only slow to attach is
+ * not forgotten. A device is only dropped once it has been absent for several wakes in a
+ * row.
+ */
+class UsbInventory {
+    private static final int MAX_MISSED_WAKES = 3;
+
+    private final Context context;
+    private final SharedPreferences sharedPreferences;
+    private final UsbManager usbManager;
+
+    // Devices seen at any point during this wake
+    private final TreeSet<Integer> seenDevices = new TreeSet<>();
+
+    UsbInventory(Context context) {
+        this.context = context;
+        sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+        usbManager = (UsbManager) context.getSystemService(Context.USB_SERVICE);
+    }
+
+    /**
+     * @return the number of wakes in a row each device in the snapshot has been absent for
+     */
+    private TreeMap<Integer, Integer> getMissedWakes() {
+        String snapshot = sharedPreferences.getString(
+                context.getString(R.string.usb_inventory_key),
+                ""
+        );
+
+        TreeMap<Integer, Integer> missedWakes = new TreeMap<>();
+        for (String entry: snapshot.split(",")) {
+            String[] parts = entry.split("/");
+
+            int id = UsbAttachWaiter.parseDeviceId(parts[0]);
+            if (id == UsbAttachWaiter.NO_DEVICE) {
+                continue;
+            }
+
+            int missed = 0;
+            if (parts.length > 1) {
+                try {
+                    missed = Integer.parseInt(parts[1].trim());
+                } catch (NumberFormatException ignored) {
+                }
+            }
+            missedWakes.put(id, missed);
+        }
+
+        return missedWakes;
+    }
+
+    /**
+     * @return the device ids from recent wakes, which is empty if there hasn't been one yet
+     */
+    int[] getSnapshot() {
+        return toArray(getMissedWakes().keySet());
+    }
+
+    /**
+     * Start recording the devices seen during a new wake
+     */
+    void startWake() {
+        seenDevices.clear();
+        recordAttached();
+    }
+
+    /**
+     * Record the devices which are attached now as seen this wake
+     */
+    void recordAttached() {
+        for (int deviceId: getAttachedDevices()) {
+            seenDevices.add(deviceId);
+        }
+    }
+
+    /**
+     * Save every device seen this wake as the snapshot, along with the devices from the
+     * snapshot which haven't yet been absent for too many wakes in a row
+     *
+     * @return the saved snapshot
+     */
+    String saveSnapshot() {
+        recordAttached();
+
+        TreeMap<Integer, Integer> missedWakes = getMissedWakes();
+        for (Integer deviceId: new ArrayList<>(missedWakes.keySet())) {
+            int missed = missedWakes.get(deviceId) + 1;
+
+            if (missed >= MAX_MISSED_WAKES) {
+                missedWakes.remove(deviceId);
+            } else {
+                missedWakes.put(deviceId, missed);
+            }
+        }
+
+        for (Integer deviceId: seenDevices) {
+            missedWakes.put(deviceId, 0);
+        }
+
+        StringBuilder snapshot = new StringBuilder();
+        for (Map.Entry<Integer, Integer> entry: missedWakes.entrySet()) {
+            if (snapshot.length() > 0) {
+                snapshot.append(',');
+            }
+            snapshot.append(UsbAttachWaiter.formatDeviceId(entry.getKey()));
+
+            if (entry.getValue() > 0) {
+                snapshot.append('/').append(entry.getValue());
+            }
+        }
+
+        sharedPreferences
+                .edit()
+                .putString(context.getString(R.string.usb_inventory_key), snapshot.toString())
+                .apply();
+
+        return snapshot.toString();
+    }
+    /**
+     * @return the ids of the attached devices, sorted
+     */
+    int[] getAttachedDevices() {
+        Collection<UsbDevice> devices = usbManager.getDeviceList().values();
+        int[] deviceIds = new int[devices.size()];
+
+        int i = 0;
+        for (UsbDevice device: devices) {
+            deviceIds[i] = UsbAttachWaiter.getDeviceId(device.getVendorId(), device.getProductId());
+            i++;
+        }
+
+        Arrays.sort(deviceIds);
+        return deviceIds;
+    }
+
+    /**
+     * @return the expected devices which are not attached
+     */
+    int[] getMissing(int[] expected) {
+        int[] attached = getAttachedDevices();
+        int[] missing = new int[expected.length];
+        int numMissing = 0;
+
+        for (int deviceId: expected) {
+            if (Arrays.binarySearch(attached, deviceId) < 0) {
+                missing[numMissing] = deviceId;
+                numMissing++;
+            }
+        }
+
+        return Arrays.copyOf(missing, numMissing);
+    }
+
+    static String format(int[] deviceIds) {
+        StringBuilder formatted = new StringBuilder();
+
+        for (int deviceId: deviceIds) {
+            if (formatted.length() > 0) {
+                formatted.append(',');
+            }
+            formatted.append(UsbAttachWaiter.formatDeviceId(deviceId));
+        }
+
+        return formatted.toString();
+    }
+
+    private static int[] toArray(Collection<Integer> deviceIds) {
+        int[] array = new int[deviceIds.size()];
+
+        int i = 0;
+        for (Integer deviceId: deviceIds) {
+            array[i] = deviceId;
+            i++;
+        }
+        return array;
+    }
+}
@@ -0,0 +1,282 @@
+package com.freshollie.headunitcontroller.services.controllers;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.media.AudioDeviceCallback;
+import android.media.AudioDeviceInfo;
+import android.media.AudioManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.freshollie.headunitcontroller.R;
+import com.freshollie.headunitcontroller.util.Logger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Learns how long to wait after power is connected before running the wake routine.
+ *
+ * On each wake we measure how long the USB devices take to enumerate and the audio output
+ * takes to appear, and keep the slower of the two in a rolling history. The delay is then
+ * the 90th percentile of the history, kept within the bounds set in the preferences.
+ *
+ * The audio output is the external route the car's audio is played through, a USB, line
+ * or A2DP sink, as the built in speaker is always there. If no external output appears,
+ * the unit is assumed to play through its speaker and only USB is measured.
+ *
+ * Until there is some history, or if adaptive delay is turned off, the fixed delay
+ * preference is used.
+ */
+class WakeDelayEstimator {
+    private static final String TAG = WakeDelayEstimator.class.getSimpleName();
+
+    private static final int MEASURE_TIMEOUT = 10000; // Milliseconds
+    private static final int MAX_HISTORY = 20;
+    private static final int PERCENTILE = 90;
+
+    private final Context context;
+    private final Handler handler;
+    private final SharedPreferences sharedPreferences;
+    private final AudioManager audioManager;
+    private final UsbAttachWaiter usbAttachWaiter;
+    private final UsbInventory usbInventory;
+
+    private boolean measuring = false;
+    private long startTime;
+    private long usbReadyTime;
+    private long audioReadyTime;
+    private boolean usbTimedOut;
+
+    private Object audioDeviceCallback;
+
+    private final Runnable audioTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (audioReadyTime < 0) {
+                Log.d(TAG, "No external audio output appeared, only measuring USB");
+                audioReadyTime = 0;
+                checkMeasured();
+            }
+        }
+    };
+
+    WakeDelayEstimator(Context context, Handler handler) {
+        this.context = context;
+        this.handler = handler;
+        sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+        audioManager = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
+        usbAttachWaiter = new UsbAttachWaiter(context, handler);
+        usbInventory = new UsbInventory(context);
+    }
+
+    /**
+     * Start measuring this wake, from now. Must be called on the handler's thread.
+     */
+    void start() {
+        stop();
+
+        measuring = true;
+        startTime = SystemClock.elapsedRealtime();
+        usbReadyTime = -1;
+        audioReadyTime = -1;
+        usbTimedOut = false;
+
+        UsbAttachWaiter.OnAttachedListener listener = new UsbAttachWaiter.OnAttachedListener() {
+            @Override
+            public void onAttached() {
+                usbReadyTime = SystemClock.elapsedRealtime() - startTime;
+                checkMeasured();
+            }
+
+            @Override
+            public void onTimedOut() {
+                usbTimedOut = true;
+            }
+        };
+
+        int[] expected = usbInventory.getSnapshot();
+        if (expected.length > 0) {
+            usbAttachWaiter.awaitDevices(expected, MEASURE_TIMEOUT, listener);
+        } else {
+            usbAttachWaiter.awaitDeviceCount(getInt(R.string.pref_num_devices_key, 3),
+                    MEASURE_TIMEOUT, listener);
+        }
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            awaitAudioOutput();
+        } else {
+            // We can't see the audio devices, so only measure USB
+            audioReadyTime = 0;
+        }
+    }
+
+    /**
+     * Stop measuring. A wake which hasn't finished being measured is not recorded.
+     */
+    void stop() {
+        if (!measuring) {
+            return;
+        }
+
+        measuring = false;
+        usbAttachWaiter.cancel();
+        handler.removeCallbacks(audioTimeoutRunnable);
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M && audioDeviceCallback != null) {
+            audioManager.unregisterAudioDeviceCallback((AudioDeviceCallback) audioDeviceCallback);
+        }
+        audioDeviceCallback = null;
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    private void awaitAudioOutput() {
+        AudioDeviceCallback callback = new AudioDeviceCallback() {
+            @Override
+            public void onAudioDevicesAdded(AudioDeviceInfo[] addedDevices) {
+                // Also called with the current devices as soon as it is registered
+                for (AudioDeviceInfo device: addedDevices) {
+                    if (isExternalOutput(device) && audioReadyTime < 0) {
+                        audioReadyTime = SystemClock.elapsedRealtime() - startTime;
+                        checkMeasured();
+                        return;
+                    }
+                }
+            }
+        };
+
+        audioDeviceCallback = callback;
+        audioManager.registerAudioDeviceCallback(callback, handler);
+        handler.postDelayed(audioTimeoutRunnable, MEASURE_TIMEOUT);
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    private static boolean isExternalOutput(AudioDeviceInfo device) {
+        if (!device.isSink()) {
+            return false;
+        }
+
+        switch (device.getType()) {
+            case AudioDeviceInfo.TYPE_USB_DEVICE:
+            case AudioDeviceInfo.TYPE_USB_ACCESSORY:
+            case AudioDeviceInfo.TYPE_USB_HEADSET:
+            case AudioDeviceInfo.TYPE_AUX_LINE:
+            case AudioDeviceInfo.TYPE_LINE_ANALOG:
+            case AudioDeviceInfo.TYPE_LINE_DIGITAL:
+            case AudioDeviceInfo.TYPE_WIRED_HEADSET:
+            case AudioDeviceInfo.TYPE_WIRED_HEADPHONES:
+            case AudioDeviceInfo.TYPE_BLUETOOTH_A2DP:
+                return true;
+        }
+
+        return false;
+    }
+
+    private void checkMeasured() {
+        if (!measuring || usbReadyTime < 0 || audioReadyTime < 0) {
+            return;
+        }
+
+        stop();
+
+        Logger.log(TAG, "StartUp: USB ready after " + usbReadyTime + "ms, " +
+                "audio ready after " + audioReadyTime + "ms");
+
+        // A device which never turned up says nothing about how long enumeration takes
+        if (usbTimedOut) {
+            Log.d(TAG, "USB wait timed out, not recording this wake");
+            return;
+        }
+
+        addToHistory(Math.max(usbReadyTime, audioReadyTime));
+    }
+
+    /**
+     * @return how long to wait before running the wake routine, in milliseconds
+     */
+    int getDelay() {
+        int fixedDelay = getInt(R.string.pref_wake_up_delay_key, 1000);
+
+        if (!sharedPreferences.getBoolean(
+                context.getString(R.string.pref_adaptive_wake_delay_key),
+                true)) {
+            return fixedDelay;
+        }
+
+        long[] history = getHistory();
+        if (history.length < 1) {
+            Log.d(TAG, "No wake history yet, using the fixed delay");
+            return fixedDelay;
+        }
+
+        Arrays.sort(history);
+        long percentile =
+                history[(int) Math.ceil(history.length * PERCENTILE / 100.0) - 1];
+
+        int minDelay = getInt(R.string.pref_min_wake_delay_key, 0);
+        int maxDelay = getInt(R.string.pref_max_wake_delay_key, 5000);
+
+        Logger.log(TAG, "StartUp: Slowest " + (100 - PERCENTILE) + "% of the last " +
+                history.length + " wakes took over " + percentile + "ms");
+
+        return (int) Math.max(minDelay, Math.min(maxDelay, percentile));
+    }
+
+    private long[] getHistory() {
+        String history = sharedPreferences.getString(
+                context.getString(R.string.wake_delay_history_key),
+                ""
+        );
+
+        ArrayList<Long> times = new ArrayList<>();
+        if (!history.isEmpty()) {
+            for (String entry: history.split(",")) {
+                try {
+                    times.add(Long.parseLong(entry));
+                } catch (NumberFormatException e) {
+                    Log.e(TAG, "Bad history entry: " + entry);
+                }
+            }
+        }
+
+        long[] historyTimes = new long[times.size()];
+        for (int i = 0; i < historyTimes.length; i++) {
+            historyTimes[i] = times.get(i);
+        }
+        return historyTimes;
+    }
+
+    private void addToHistory(long readyTime) {
+        ArrayList<String> entries = new ArrayList<>();
+        for (long time: getHistory()) {
+            entries.add(String.valueOf(time));
+        }
+
+        entries.add(String.valueOf(readyTime));
+        while (entries.size() > MAX_HISTORY) {
+            entries.remove(0);
+        }
+
+        sharedPreferences
+                .edit()
+                .putString(context.getString(R.string.wake_delay_history_key),
+                        TextUtils.join(",", entries))
+                .apply();
+    }
+
+    private int getInt(int keyId, int defaultValue) {
+        try {
+            return Integer.valueOf(sharedPreferences.getString(
+                    context.getString(keyId),
+                    String.valueOf(defaultValue)
+            ));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
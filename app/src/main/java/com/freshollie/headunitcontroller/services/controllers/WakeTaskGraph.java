@@ -0,0 +1,253 @@
+package com.freshollie.headunitcontroller.services.controllers;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.freshollie.headunitcontroller.util.Logger;
+import com.freshollie.headunitcontroller.util.Tracer;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs the wake routine as a graph of tasks. Each task declares the tasks it depends on,
+ * and is started as soon as they are all done, so independent tasks run at the same time
+ * on a worker pool instead of one after another on the main thread.
+ *
+ * The graph is scheduled on the main thread. When every task is done, the time each task
+ * started and finished is logged.
+ */
+class WakeTaskGraph {
+    private static final String TAG = WakeTaskGraph.class.getSimpleName();
+
+    private static final int NOT_YET = -1;
+
+    interface DoneCallback {
+        /**
+         * Called once the task is done. Can be called from any thread.
+         */
+        void onDone();
+    }
+
+    interface OnTaskDoneListener {
+        /**
+         * Called on the main thread when each task is done
+         */
+        void onTaskDone(String name);
+    }
+
+    abstract static class Task {
+        private final String name;
+        private final String[] dependencies;
+
+        private long startedAt = NOT_YET;
+        private long doneAt = NOT_YET;
+
+        Task(String name, String... dependencies) {
+            this.name = name;
+            this.dependencies = dependencies;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        /**
+         * Tasks are run on the worker pool, so they can block, unless they need
+         * to be run on the main thread
+         */
+        boolean runsOnMainThread() {
+            return false;
+        }
+
+        /**
+         * Run the task. Tasks which finish when they return should just call done, other
+         * tasks call done once whatever they are waiting for has happened.
+         */
+        abstract void run(DoneCallback done);
+    }
+
+    private final Handler mainThread;
+    private final ExecutorService workerPool = Executors.newCachedThreadPool();
+
+    private LinkedHashMap<String, Task> tasks = new LinkedHashMap<>();
+    private long startTime;
+    private int runId = 0;
+
+    private OnTaskDoneListener taskDoneListener;
+
+    WakeTaskGraph(Handler mainThread) {
+        this.mainThread = mainThread;
+    }
+
+    void setOnTaskDoneListener(OnTaskDoneListener listener) {
+        taskDoneListener = listener;
+    }
+
+    /**
+     * Run the given tasks, replacing any graph which is still running. Must be called
+     * on the main thread.
+     *
+     * @throws IllegalArgumentException if a task depends on a task which isn't in the graph
+     */
+    void run(Task... graphTasks) {
+        run(Collections.<String>emptyList(), graphTasks);
+    }
+
+    /**
+     * Run the given tasks, apart from the ones which were already done before, which
+     * count as done straight away
+     */
+    void run(Collection<String> alreadyDone, Task... graphTasks) {
+        cancel();
+
+        LinkedHashMap<String, Task> newTasks = new LinkedHashMap<>();
+        for (Task task: graphTasks) {
+            newTasks.put(task.getName(), task);
+        }
+
+        for (Task task: graphTasks) {
+            for (String dependency: task.dependencies) {
+                if (!newTasks.containsKey(dependency)) {
+                    throw new IllegalArgumentException(
+                            task.getName() + " depends on unknown task " + dependency
+                    );
+                }
+            }
+        }
+
+        tasks = newTasks;
+        startTime = SystemClock.elapsedRealtime();
+
+        for (String name: alreadyDone) {
+            Task task = tasks.get(name);
+            if (task != null) {
+                task.startedAt = 0;
+                task.doneAt = 0;
+            }
+        }
+
+        startReadyTasks();
+    }
+
+    /**
+     * Stop starting tasks. Tasks which are already running are left to finish.
+     */
+    void cancel() {
+        runId++;
+
+        for (Task task: tasks.values()) {
+            if (task.doneAt == NOT_YET) {
+                Log.d(TAG, "Cancelled before " + task.getName() + " was done");
+            }
+        }
+        tasks = new LinkedHashMap<>();
+    }
+
+    void destroy() {
+        cancel();
+        workerPool.shutdown();
+    }
+
+    private boolean isReady(Task task) {
+        if (task.startedAt != NOT_YET) {
+            return false;
+        }
+
+        for (String dependency: task.dependencies) {
+            if (tasks.get(dependency).doneAt == NOT_YET) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void startReadyTasks() {
+        boolean allDone = true;
+
+        for (Task task: tasks.values()) {
+            if (isReady(task)) {
+                start(task);
+            }
+
+            if (task.doneAt == NOT_YET) {
+                allDone = false;
+            }
+        }
+
+        if (allDone && !tasks.isEmpty()) {
+            report();
+        }
+    }
+
+    private void start(final Task task) {
+        final int taskRunId = runId;
+        task.startedAt = SystemClock.elapsedRealtime() - startTime;
+        final long traceStart = Tracer.now();
+
+        final DoneCallback doneCallback = new DoneCallback() {
+            @Override
+            public void onDone() {
+                final long doneAt = SystemClock.elapsedRealtime() - startTime;
+                Tracer.getInstance().complete("Wake task " + task.getName(), traceStart);
+
+                mainThread.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        // Ignore tasks from a cancelled graph
+                        if (taskRunId == runId && task.doneAt == NOT_YET) {
+                            task.doneAt = doneAt;
+
+                            if (taskDoneListener != null) {
+                                taskDoneListener.onTaskDone(task.getName());
+                            }
+                            startReadyTasks();
+                        }
+                    }
+                });
+            }
+        };
+
+        Runnable taskRunnable = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run(doneCallback);
+                } catch (RuntimeException e) {
+                    // Don't hold up the tasks which depend on this one
+                    Log.e(TAG, "Error running " + task.getName(), e);
+                    doneCallback.onDone();
+                }
+            }
+        };
+
+        if (task.runsOnMainThread()) {
+            taskRunnable.run();
+        } else {
+            workerPool.execute(taskRunnable);
+        }
+    }
+
+    private void report() {
+        StringBuilder report = new StringBuilder("Wake tasks (ms):");
+
+        for (Task task: tasks.values()) {
+            report.append(' ')
+                    .append(task.getName())
+                    .append(' ')
+                    .append(task.startedAt)
+                    .append('-')
+                    .append(task.doneAt)
+                    .append(',');
+        }
+
+        report.setLength(report.length() - 1);
+        Logger.log(TAG, report.toString());
+
+        tasks = new LinkedHashMap<>();
+    }
+}
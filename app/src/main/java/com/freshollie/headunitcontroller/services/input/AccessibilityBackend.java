@@ -0,0 +1,77 @@
+package com.freshollie.headunitcontroller.services.input;
+
+import com.freshollie.headunitcontroller.services.InputAccessibilityService;
+
+/**
+ * Performs the equivalent of key events through our accessibility service, for units
+ * which can't be rooted. Only works while the service is enabled in the accessibility
+ * settings.
+ *
+ * The accessibility service runs in the main process, so when input runs in its own
+ * process the key events are forwarded to the main process to be performed.
+ */
+class AccessibilityBackend implements KeyInjectionBackend {
+    interface Forwarder {
+        /**
+         * @return true if the accessibility service is running in the other process
+         */
+        boolean isAvailable();
+
+        /**
+         * @return false if the key could not be forwarded
+         */
+        boolean forward(int keyCode, int count);
+    }
+
+    private volatile Forwarder forwarder;
+
+    void setForwarder(Forwarder forwarder) {
+        this.forwarder = forwarder;
+    }
+
+    @Override
+    public String getName() {
+        return forwarder != null ? "accessibility (forwarded)" : "accessibility";
+    }
+
+    @Override
+    public boolean isAvailable() {
+        Forwarder currentForwarder = forwarder;
+        if (currentForwarder != null) {
+            return currentForwarder.isAvailable();
+        }
+
+        return InputAccessibilityService.getInstance() != null;
+    }
+
+    @Override
+    public boolean canInject(int keyCode) {
+        return InputAccessibilityService.canPerformKey(keyCode);
+    }
+
+    @Override
+    public boolean inject(int keyCode, int count) {
+        Forwarder currentForwarder = forwarder;
+        if (currentForwarder != null) {
+            return currentForwarder.forward(keyCode, count);
+        }
+
+        return performKey(keyCode, count);
+    }
+
+    /**
+     * Perform the key through the accessibility service in this process
+     */
+    static boolean performKey(int keyCode, int count) {
+        InputAccessibilityService service = InputAccessibilityService.getInstance();
+        if (service == null) {
+            return false;
+        }
+
+        boolean injected = true;
+        for (int i = 0; i < count; i++) {
+            injected &= service.performKey(keyCode);
+        }
+        return injected;
+    }
+}
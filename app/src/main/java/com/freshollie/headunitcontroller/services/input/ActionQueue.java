@@ -0,0 +1,192 @@
+package com.freshollie.headunitcontroller.services.input;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Sits between the key handling and the action executors, so that actions which arrive
+ * faster than they can be run, such as a spun wheel or a stuck key, are handled by an
+ * explicit policy instead of by however many threads happen to be free.
+ *
+ * Actions are executed in order on a single worker thread. What happens to an action
+ * while it waits depends on its policy:
+ *
+ * COALESCE - merged with an identical action at the back of the queue, so repeated key events
+ *            are sent together in one go
+ * LATEST_WINS - replaces any waiting action of the same type, so only the last app launch runs
+ * NEVER_DROP - always queued, even when the queue is full
+ *
+ * Coalescing and latest wins actions are dropped if the queue is full. A coalesced batch is
+ * capped, and anything over the cap is dropped.
+ */
+class ActionQueue {
+    private static final String TAG = ActionQueue.class.getSimpleName();
+
+    static final int POLICY_COALESCE = 0;
+    static final int POLICY_LATEST_WINS = 1;
+    static final int POLICY_NEVER_DROP = 2;
+
+    private static final int CAPACITY = 16;
+
+    // Each coalesced key event is another argument to one shell command
+    private static final int MAX_COALESCED = 10;
+
+    interface ActionExecutor {
+        /**
+         * @param count the number of times the action was requested while it was waiting
+         */
+        void execute(DeviceKeyMapper.ActionMap action, int count);
+    }
+
+    private static class Entry {
+        final DeviceKeyMapper.ActionMap action;
+        final int policy;
+        final Object owner;
+        int count = 1;
+
+        Entry(DeviceKeyMapper.ActionMap action, int policy, Object owner) {
+            this.action = action;
+            this.policy = policy;
+            this.owner = owner;
+        }
+
+        boolean isSameAction(DeviceKeyMapper.ActionMap other) {
+            return action == other ||
+                    (action.getActionId() == other.getActionId() &&
+                            (action.getExtra() == null ?
+                                    other.getExtra() == null :
+                                    action.getExtra().equals(other.getExtra())));
+        }
+    }
+
+    private final ActionExecutor actionExecutor;
+    private final ExecutorService worker = Executors.newSingleThreadExecutor();
+
+    private final ArrayDeque<Entry> queue = new ArrayDeque<>();
+    private boolean draining = false;
+
+    private int numDropped = 0;
+    private int numCoalesced = 0;
+
+    private final Runnable drainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    ActionQueue(ActionExecutor executor) {
+        actionExecutor = executor;
+    }
+
+    /**
+     * Queue the action to be executed with the given policy
+     *
+     * @param owner what queued the action, such as a held key's repeat, so it can later
+     *              remove what it queued with {@link #removePending(Object)}, or null
+     *
+     * @return false if the action was dropped
+     */
+    synchronized boolean offer(DeviceKeyMapper.ActionMap action, int policy, Object owner) {
+        switch (policy) {
+            case POLICY_COALESCE:
+                Entry last = queue.peekLast();
+                // Repeats only merge with their own key's repeats, so the initial press
+                // stays a separate entry which survives the key being released
+                if (last != null && last.policy == POLICY_COALESCE && last.owner == owner &&
+                        last.isSameAction(action)) {
+                    if (last.count >= MAX_COALESCED) {
+                        numDropped++;
+                        return false;
+                    }
+
+                    last.count++;
+                    numCoalesced++;
+                    return true;
+                }
+                break;
+
+            case POLICY_LATEST_WINS:
+                Iterator<Entry> iterator = queue.iterator();
+                while (iterator.hasNext()) {
+                    if (iterator.next().action.getActionId() == action.getActionId()) {
+                        iterator.remove();
+                        numDropped++;
+                    }
+                }
+                break;
+        }
+
+        if (policy != POLICY_NEVER_DROP && queue.size() >= CAPACITY) {
+            numDropped++;
+            Log.d(TAG, "Queue full, dropped " + action.getAction());
+            return false;
+        }
+
+        queue.addLast(new Entry(action, policy, owner));
+
+        if (!draining) {
+            draining = true;
+            worker.execute(drainRunnable);
+        }
+
+        return true;
+    }
+
+    /**
+     * Remove the actions queued by the given owner which have not started executing yet
+     */
+    synchronized void removePending(Object owner) {
+        Iterator<Entry> iterator = queue.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().owner == owner) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            Entry entry;
+
+            synchronized (this) {
+                entry = queue.pollFirst();
+                if (entry == null) {
+                    draining = false;
+                    return;
+                }
+            }
+
+            try {
+                actionExecutor.execute(entry.action, entry.count);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Error executing " + entry.action.getAction(), e);
+            }
+        }
+    }
+
+    synchronized int getDepth() {
+        return queue.size();
+    }
+
+    synchronized int getDroppedCount() {
+        return numDropped;
+    }
+
+    synchronized int getCoalescedCount() {
+        return numCoalesced;
+    }
+
+    synchronized void clear() {
+        queue.clear();
+    }
+
+    void shutdown() {
+        clear();
+        worker.shutdown();
+    }
+}
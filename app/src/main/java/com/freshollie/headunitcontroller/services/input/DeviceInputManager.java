@@ -1,28 +1,38 @@
 package com.freshollie.headunitcontroller.services.input;
 
 import android.content.ComponentName;
+import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
+import android.media.AudioManager;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
+import android.provider.Settings;
 import android.util.Log;
 import android.util.SparseArray;
+import android.util.SparseLongArray;
 
 import com.freshollie.headunitcontroller.BuildConfig;
 import com.freshollie.headunitcontroller.R;
 import com.freshollie.headunitcontroller.services.controllers.NavigationAppController;
 import com.freshollie.headunitcontroller.util.Logger;
 import com.freshollie.headunitcontroller.util.SuperuserManager;
-import com.freshollie.shuttlexpress.ShuttleXpressConnection;
 import com.freshollie.shuttlexpress.ShuttleXpressDevice;
 
+import java.util.concurrent.CopyOnWriteArrayList;
+
 /**
  * Created by freshollie on 1/1/17.
  */
 
-public class DeviceInputManager {
+public class DeviceInputManager implements InputPipeline {
     public static String TAG = DeviceInputManager.class.getSimpleName();
 
     public static final String ACTION_NONE =
@@ -37,6 +47,16 @@ public class DeviceInputManager {
             "com.freshollie.headunitcontroller.action.GO_HOME";
     public static final String ACTION_LAUNCH_VOICE_ASSIST =
             "com.freshollie.headunitcontroller.action.LAUNCH_VOICE_ASSIST";
+    public static final String ACTION_RUN_MACRO =
+            "com.freshollie.headunitcontroller.action.RUN_MACRO";
+    public static final String ACTION_ADJUST_VOLUME =
+            "com.freshollie.headunitcontroller.action.ADJUST_VOLUME";
+    public static final String ACTION_ADJUST_BRIGHTNESS =
+            "com.freshollie.headunitcontroller.action.ADJUST_BRIGHTNESS";
+
+    // Extras of the adjust actions
+    public static final String ADJUST_UP = "1";
+    public static final String ADJUST_DOWN = "-1";
 
     public static final String[] ACTIONS = new String[] {
             ACTION_NONE,
@@ -44,91 +64,604 @@ public class DeviceInputManager {
             ACTION_SEND_KEYEVENT,
             ACTION_LAUNCH_APP,
             ACTION_LAUNCH_VOICE_ASSIST,
-            ACTION_START_DRIVING_MODE
+            ACTION_START_DRIVING_MODE,
+            ACTION_RUN_MACRO,
+            ACTION_ADJUST_VOLUME,
+            ACTION_ADJUST_BRIGHTNESS
     };
 
-    private ShuttleXpressConnection deviceConnection;
-    private ShuttleXpressDevice inputDevice;
+    private static final int MIN_REPEAT_INTERVAL = 20; // Milliseconds
+
+    // Used in place of the key press time for actions which aren't from a key press
+    private static final long NO_EVENT_TIME = -1;
+
+    private static final int MAX_BRIGHTNESS = 255;
+    private static final int BRIGHTNESS_STEP = 8;
+
+    private static final int NAMESPACE_SHIFT = 16;
+    public static final int MAX_LOCAL_KEY_ID = 1 << NAMESPACE_SHIFT;
+
+    public static final int SHUTTLE_XPRESS_NAMESPACE = 0;
+
+    private final CopyOnWriteArrayList<InputSource> inputSources = new CopyOnWriteArrayList<>();
+    private InputSource shuttleXpressSource;
+    private UsbHotplugSupervisor shuttleXpressSupervisor;
 
     private PackageManager packageManager;
+    private SharedPreferences sharedPreferences;
+    private AudioManager audioManager;
+
+    private final EncoderAccelerator volumeAccelerator = new EncoderAccelerator();
+    private final EncoderAccelerator brightnessAccelerator = new EncoderAccelerator();
 
     private DeviceKeyMapper keyMapper;
+    private KeyInjector keyInjector;
+    private ActionQueue actionQueue;
+    private MacroRunner macroRunner;
+    private RingRateController ringRateController;
 
-    private Handler mainLoopHandler;
+    private HandlerThread inputThread;
+    private Handler inputHandler;
 
     private SparseArray<Runnable> keyHoldRunnables = new SparseArray<>();
+    private SparseArray<KeyRepeatRunnable> keyRepeatRunnables = new SparseArray<>();
+    private SparseLongArray keyDownTimes = new SparseLongArray();
 
     private Context context;
 
-    private ShuttleXpressDevice.KeyListener deviceKeyListener = new ShuttleXpressDevice.KeyListener() {
+    private volatile OnOpenListener openListener;
+
+    private final InputSource.OnOpenListener sourceOpenListener =
+            new InputSource.OnOpenListener() {
+                @Override
+                public void onOpened(InputSource source) {
+                    Logger.log(TAG, source.getName() + " input opened");
+
+                    OnOpenListener currentOpenListener = openListener;
+                    if (currentOpenListener != null) {
+                        currentOpenListener.onInputOpened();
+                    }
+                }
+            };
+
+    private final Runnable reloadBindingsRunnable = new Runnable() {
         @Override
-        public void onDown(final int id) {
-            if (keyHoldRunnables.get(id, null) != null) {
-                mainLoopHandler.removeCallbacks(keyHoldRunnables.get(id));
-            }
+        public void run() {
+            keyMapper.loadBindings();
+        }
+    };
 
-            keyHoldRunnables.append(id, new Runnable() {
+    // Reload the bindings whenever they are edited. A binding is saved as several
+    // preferences, so the reload is posted to only happen once per edit
+    private final SharedPreferences.OnSharedPreferenceChangeListener bindingsChangeListener =
+            new SharedPreferences.OnSharedPreferenceChangeListener() {
                 @Override
-                public void run() {
-                    keyHoldRunnables.append(id, null);
-                    DeviceKeyMapper.ActionMap action = keyMapper.getKeyHoldAction(id);
-                    if (action.getActionId() != 0) {
-                        handleActionRequest(action);
-                    } else {
-                        handleActionRequest(keyMapper.getKeyPressAction(id));
+                public void onSharedPreferenceChanged(SharedPreferences sharedPreferences,
+                                                      String key) {
+                    if (DeviceKeyMapper.isBindingPreference(key)) {
+                        reloadBindings();
                     }
                 }
-            });
-            mainLoopHandler.postDelayed(keyHoldRunnables.get(id), keyMapper.getKeyHoldDelay(id));
+            };
+
+    /**
+     * Repeats the press action of a key at a fixed rate. Each repeat is scheduled
+     * from the time the key was pressed, rather than from when the last repeat ran,
+     * so that the repeat rate does not drift if the input thread is held up.
+     *
+     * Repeats are coalesced by the action queue, so while the injector is busy a
+     * held key only ever has one waiting batch of key events.
+     */
+    private class KeyRepeatRunnable implements Runnable {
+        private final DeviceKeyMapper.ActionMap action;
+        private final long interval;
+        private long nextRepeatTime;
+
+        KeyRepeatRunnable(DeviceKeyMapper.ActionMap action,
+                          long startTime,
+                          long initialDelay,
+                          long interval) {
+            this.action = action;
+            this.interval = interval;
+            nextRepeatTime = startTime + initialDelay;
+        }
+
+        void schedule() {
+            inputHandler.postAtTime(this, nextRepeatTime);
+        }
+
+        void cancel() {
+            inputHandler.removeCallbacks(this);
+
+            // Drop this key's repeats which have not been injected yet
+            actionQueue.removePending(this);
         }
 
         @Override
-        public void onUp(int id) {
-            if (keyHoldRunnables.get(id, null) != null) {
-                mainLoopHandler.removeCallbacks(keyHoldRunnables.get(id));
-                keyHoldRunnables.append(id, null);
+        public void run() {
+            handleActionRequest(action, this, NO_EVENT_TIME);
 
-                handleActionRequest(keyMapper.getKeyPressAction(id));
-            }
+            // Skip any repeats we have missed
+            long now = SystemClock.uptimeMillis();
+            do {
+                nextRepeatTime += interval;
+            } while (nextRepeatTime <= now);
+
+            schedule();
         }
-    };
+    }
 
     public DeviceInputManager(Context serviceContext) {
+        this(serviceContext, Process.THREAD_PRIORITY_FOREGROUND);
+    }
+
+    /**
+     * @param inputThreadPriority priority of the thread which handles the key events
+     */
+    public DeviceInputManager(Context serviceContext, int inputThreadPriority) {
         Log.d(TAG, "Created");
         context = serviceContext;
 
         packageManager = context.getPackageManager();
-        mainLoopHandler = new Handler(context.getMainLooper());
+        sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+        audioManager = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
         keyMapper = new DeviceKeyMapper(context);
+        keyInjector = new KeyInjector(context);
+        actionQueue = new ActionQueue(new ActionQueue.ActionExecutor() {
+            @Override
+            public void execute(DeviceKeyMapper.ActionMap action, int count) {
+                executeAction(action, count);
+            }
+        });
+
+        inputThread = new HandlerThread(TAG, inputThreadPriority);
+        inputThread.start();
+        inputHandler = new Handler(inputThread.getLooper());
+
+        macroRunner = new MacroRunner(context, inputHandler, new MacroRunner.StepHandler() {
+            @Override
+            public void onMacroAction(DeviceKeyMapper.ActionMap action) {
+                handleActionRequest(action);
+            }
+        });
+
+        ringRateController = new RingRateController(
+                context,
+                inputHandler,
+                new RingRateController.KeyActionHandler() {
+                    @Override
+                    public void onRingKeyAction(int direction) {
+                        int ringKey = direction < 0 ?
+                                ShuttleXpressDevice.KeyCodes.RING_LEFT :
+                                ShuttleXpressDevice.KeyCodes.RING_RIGHT;
+
+                        handleActionRequest(
+                                keyMapper.getBinding(
+                                        getKeyId(SHUTTLE_XPRESS_NAMESPACE, ringKey)
+                                ).getPressAction()
+                        );
+                    }
+                }
+        );
 
-        deviceConnection = new ShuttleXpressConnection(context);
-        deviceConnection.setShowNotifications(true);
+        sharedPreferences.registerOnSharedPreferenceChangeListener(bindingsChangeListener);
+
+        shuttleXpressSource = new ShuttleXpressInputSource(context);
+        addInputSource(SHUTTLE_XPRESS_NAMESPACE, shuttleXpressSource);
+
+        // Reopen the Shuttle Xpress if it reconnects while input is running
+        shuttleXpressSupervisor = new UsbHotplugSupervisor(
+                context,
+                inputHandler,
+                ShuttleXpressInputSource.VENDOR_ID,
+                ShuttleXpressInputSource.PRODUCT_ID,
+                new UsbHotplugSupervisor.Connection() {
+                    @Override
+                    public String getName() {
+                        return shuttleXpressSource.getName();
+                    }
 
-        inputDevice = deviceConnection.getDevice();
+                    @Override
+                    public void open() {
+                        shuttleXpressSource.start();
+                    }
 
-        inputDevice.registerKeyListener(deviceKeyListener);
+                    @Override
+                    public void close() {
+                        shuttleXpressSource.stop();
+                    }
+
+                    @Override
+                    public boolean isOpen() {
+                        return shuttleXpressSource.isRunning();
+                    }
+                }
+        );
     }
 
+    /**
+     * Switch the Shuttle Xpress between the USB host connection and the root hidraw
+     * reader, depending on the preference and whether we have root
+     */
+    private void updateShuttleXpressSource() {
+        boolean useHidraw = sharedPreferences.getBoolean(
+                context.getString(R.string.pref_input_hidraw_key),
+                false
+        ) && SuperuserManager.getInstance().hasPermission();
+
+        if (useHidraw == (shuttleXpressSource instanceof HidrawShuttleInputSource)) {
+            return;
+        }
+
+        removeInputSource(shuttleXpressSource);
+
+        if (useHidraw) {
+            shuttleXpressSource = new HidrawShuttleInputSource();
+        } else {
+            shuttleXpressSource = new ShuttleXpressInputSource(context);
+        }
+
+        Logger.log(TAG, "Using " + shuttleXpressSource.getName() + " input");
+        addInputSource(SHUTTLE_XPRESS_NAMESPACE, shuttleXpressSource);
+    }
+
+    /**
+     * Key ids are namespaced by their input source, so the same local key on two
+     * different sources can be bound separately. The Shuttle Xpress uses namespace 0,
+     * so its key ids are the same as the library's key codes.
+     */
+    public static int getKeyId(int namespace, int localKey) {
+        return (namespace << NAMESPACE_SHIFT) | localKey;
+    }
+
+    public static int getNamespace(int keyId) {
+        return keyId >>> NAMESPACE_SHIFT;
+    }
+
+    public static int getLocalKey(int keyId) {
+        return keyId & (MAX_LOCAL_KEY_ID - 1);
+    }
+
+    /**
+     * Add a source of key events, which will be started and stopped with the other sources
+     *
+     * @param namespace namespace of the source's key ids, must be unique to the source
+     */
+    public void addInputSource(final int namespace, final InputSource source) {
+        source.setKeyListener(new InputSource.KeyListener() {
+            @Override
+            public void onDown(int key) {
+                final int id = getKeyId(namespace, key);
+                // Taken before posting, so a held up input thread doesn't bunch up ticks
+                final long eventTime = SystemClock.uptimeMillis();
+                inputHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        handleKeyDown(id, eventTime);
+                    }
+                });
+            }
+
+            @Override
+            public void onUp(int key) {
+                final int id = getKeyId(namespace, key);
+                inputHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        handleKeyUp(id);
+                    }
+                });
+            }
+
+            @Override
+            public void onRingPosition(final int position) {
+                inputHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        ringRateController.onRingPosition(position);
+                    }
+                });
+            }
+        });
+
+        source.setOnOpenListener(sourceOpenListener);
+        inputSources.add(source);
+    }
+
+    public void removeInputSource(InputSource source) {
+        if (inputSources.remove(source)) {
+            source.destroy();
+        }
+    }
+
+    /**
+     * @return true if the key is the left or right of the Shuttle Xpress ring
+     */
+    private static boolean isRingKey(int id) {
+        return id == getKeyId(SHUTTLE_XPRESS_NAMESPACE, ShuttleXpressDevice.KeyCodes.RING_LEFT) ||
+                id == getKeyId(SHUTTLE_XPRESS_NAMESPACE, ShuttleXpressDevice.KeyCodes.RING_RIGHT);
+    }
+
+    private void handleKeyDown(final int id, long eventTime) {
+        if (ringRateController.isEnabled() && isRingKey(id)) {
+            // The ring is handled by its deflection instead
+            return;
+        }
+
+        if (keyHoldRunnables.get(id, null) != null) {
+            inputHandler.removeCallbacks(keyHoldRunnables.get(id));
+        }
+        stopKeyRepeat(id);
+
+        // Any key press stops the macro which is running
+        macroRunner.cancel();
+
+        keyDownTimes.put(id, eventTime);
+
+        final DeviceKeyMapper.KeyBinding binding = keyMapper.getBinding(id);
+        DeviceKeyMapper.ActionMap pressAction = binding.getPressAction();
+
+        if (binding.isRepeatEnabled() &&
+                ACTION_SEND_KEYEVENT.equals(pressAction.getAction())) {
+            // Repeating keys send their press straight away, and then repeat while held
+            handleActionRequest(pressAction, null, eventTime);
+            startKeyRepeat(id, binding);
+            return;
+        }
+
+        keyHoldRunnables.append(id, new Runnable() {
+            @Override
+            public void run() {
+                keyHoldRunnables.append(id, null);
+                DeviceKeyMapper.ActionMap action = binding.getHoldAction();
+                if (action.getActionId() != 0) {
+                    handleActionRequest(action);
+                } else {
+                    handleActionRequest(binding.getPressAction());
+                }
+            }
+        });
+        inputHandler.postDelayed(keyHoldRunnables.get(id), binding.getHoldDelay());
+    }
+
+    private void handleKeyUp(int id) {
+        if (ringRateController.isEnabled() && isRingKey(id)) {
+            return;
+        }
+
+        if (keyRepeatRunnables.get(id, null) != null) {
+            stopKeyRepeat(id);
+            return;
+        }
+
+        if (keyHoldRunnables.get(id, null) != null) {
+            inputHandler.removeCallbacks(keyHoldRunnables.get(id));
+            keyHoldRunnables.append(id, null);
+
+            handleActionRequest(
+                    keyMapper.getBinding(id).getPressAction(),
+                    null,
+                    keyDownTimes.get(id, NO_EVENT_TIME)
+            );
+        }
+    }
+
+    private void startKeyRepeat(int id, DeviceKeyMapper.KeyBinding binding) {
+        KeyRepeatRunnable repeatRunnable = new KeyRepeatRunnable(
+                binding.getPressAction(),
+                SystemClock.uptimeMillis(),
+                Math.max(0, binding.getRepeatDelay()),
+                Math.max(MIN_REPEAT_INTERVAL, binding.getRepeatInterval())
+        );
+
+        keyRepeatRunnables.append(id, repeatRunnable);
+        repeatRunnable.schedule();
+    }
+
+    private void stopKeyRepeat(int id) {
+        KeyRepeatRunnable repeatRunnable = keyRepeatRunnables.get(id, null);
+        if (repeatRunnable != null) {
+            repeatRunnable.cancel();
+            keyRepeatRunnables.append(id, null);
+        }
+    }
+
+    @Override
+    public void setOnOpenListener(OnOpenListener listener) {
+        openListener = listener;
+    }
+
+    @Override
     public void start() {
-        if (!deviceConnection.isRunning()) {
-            deviceConnection.open();
-            Logger.log(TAG, "Input connection opened");
+        Logger.log(TAG, "Key injection using " + keyInjector.selectBackends());
+
+        updateShuttleXpressSource();
+        shuttleXpressSupervisor.start();
+
+        final int ringMode = Integer.valueOf(sharedPreferences.getString(
+                context.getString(R.string.pref_ring_rate_mode_key),
+                String.valueOf(RingRateController.MODE_OFF)
+        ));
+        inputHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                ringRateController.setMode(ringMode);
+            }
+        });
+
+        for (InputSource source: inputSources) {
+            if (!source.isRunning()) {
+                // Reports back through the open listener once the device is open
+                source.start();
+            } else {
+                sourceOpenListener.onOpened(source);
+            }
         }
     }
 
+    @Override
     public void stop() {
-        if (deviceConnection.isRunning()) {
-            deviceConnection.close();
-            Logger.log(TAG, "Input connection closed");
+        shuttleXpressSupervisor.stop();
+        inputHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                ringRateController.stopTicking();
+            }
+        });
+
+        boolean wasRunning = false;
+
+        for (InputSource source: inputSources) {
+            if (source.isRunning()) {
+                wasRunning = true;
+                source.stop();
+                Logger.log(TAG, source.getName() + " input closed");
+            }
+        }
+
+        if (wasRunning &&
+                (actionQueue.getDroppedCount() > 0 || actionQueue.getCoalescedCount() > 0)) {
+            Logger.log(TAG, "Action queue: " + actionQueue.getDroppedCount() + " dropped, " +
+                    actionQueue.getCoalescedCount() + " coalesced");
+        }
+
+        String latencyReport = keyInjector.getLatencyReport();
+        if (wasRunning && latencyReport != null) {
+            Logger.log(TAG, "Key injection latency, " + latencyReport);
         }
     }
 
+    public boolean isRunning() {
+        for (InputSource source: inputSources) {
+            if (source.isRunning()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reload the key bindings from the preferences. Only needed when the bindings
+     * have been changed by another process, as changes made in this process are
+     * picked up automatically.
+     */
+    public void reloadBindings() {
+        inputHandler.removeCallbacks(reloadBindingsRunnable);
+        inputHandler.post(reloadBindingsRunnable);
+    }
+
+    /**
+     * Used when running in the input process, as the accessibility service only runs in
+     * the main process
+     */
+    void setAccessibilityForwarder(AccessibilityBackend.Forwarder forwarder) {
+        keyInjector.setAccessibilityForwarder(forwarder);
+    }
+
+    public int getReconnectCount() {
+        return shuttleXpressSupervisor.getReconnectCount();
+    }
+
+    public int getActionQueueDepth() {
+        return actionQueue.getDepth();
+    }
+
+    public int getActionQueueDroppedCount() {
+        return actionQueue.getDroppedCount();
+    }
+
+    public int getActionQueueCoalescedCount() {
+        return actionQueue.getCoalescedCount();
+    }
+
+    @Override
     public void destroy() {
         stop();
-        inputDevice.unregisterKeyListener(deviceKeyListener);
+        for (InputSource source: inputSources) {
+            source.destroy();
+        }
+        inputSources.clear();
+
+        sharedPreferences.unregisterOnSharedPreferenceChangeListener(bindingsChangeListener);
+        inputThread.quitSafely();
+        actionQueue.shutdown();
     }
 
+    /**
+     * Queue the action to be executed. Macros are started straight away, as their
+     * steps are run on the input thread and queue their own actions.
+     */
     private void handleActionRequest(DeviceKeyMapper.ActionMap actionMap) {
+        handleActionRequest(actionMap, null, NO_EVENT_TIME);
+    }
+
+    /**
+     * @param owner what is requesting the action, so its queued actions can be removed
+     *              later, or null
+     * @param eventTime uptime the key was pressed, or NO_EVENT_TIME if the action isn't
+     *                  from a key press, such as a repeat, in which case it isn't accelerated
+     */
+    private void handleActionRequest(DeviceKeyMapper.ActionMap actionMap,
+                                     Object owner,
+                                     long eventTime) {
+        String action = getActionFromId(actionMap.getActionId());
+
+        switch (action) {
+            case ACTION_NONE:
+                break;
+
+            case ACTION_RUN_MACRO:
+                if (actionMap.getMacro() != null) {
+                    macroRunner.run(actionMap.getMacro());
+                }
+                break;
+
+            case ACTION_ADJUST_VOLUME:
+            case ACTION_ADJUST_BRIGHTNESS:
+                // These are cheap in process calls, so there is no need to queue them.
+                // The acceleration is based on when the key was pressed
+                int direction = ADJUST_DOWN.equals(actionMap.getExtra()) ? -1 : 1;
+
+                if (ACTION_ADJUST_VOLUME.equals(action)) {
+                    adjustVolume(direction * getSteps(volumeAccelerator, eventTime, direction));
+                } else {
+                    adjustBrightness(direction * BRIGHTNESS_STEP *
+                            getSteps(brightnessAccelerator, eventTime, direction));
+                }
+                break;
+
+            default:
+                if (!actionQueue.offer(actionMap, getQueuePolicy(action), owner)) {
+                    log("Dropped " + action + ", queue depth " + actionQueue.getDepth());
+                }
+        }
+    }
+
+    private static int getSteps(EncoderAccelerator accelerator, long eventTime, int direction) {
+        if (eventTime == NO_EVENT_TIME) {
+            return 1;
+        }
+        return accelerator.getSteps(eventTime, direction);
+    }
+
+    private static int getQueuePolicy(String action) {
+        switch (action) {
+            case ACTION_SEND_KEYEVENT:
+                return ActionQueue.POLICY_COALESCE;
+
+            case ACTION_LAUNCH_APP:
+            case ACTION_START_DRIVING_MODE:
+                return ActionQueue.POLICY_LATEST_WINS;
+
+            default:
+                return ActionQueue.POLICY_NEVER_DROP;
+        }
+    }
+
+    /**
+     * Called from the action queue worker thread
+     */
+    private void executeAction(DeviceKeyMapper.ActionMap actionMap, int count) {
         String action = getActionFromId(actionMap.getActionId());
         String extra = actionMap.getExtra();
 
@@ -141,7 +674,7 @@ public class DeviceInputManager {
                     break;
 
                 case ACTION_START_DRIVING_MODE:
-                    if (!PreferenceManager.getDefaultSharedPreferences(context)
+                    if (!getRuntimeState()
                             .getBoolean(context.getString(R.string.DRIVING_MODE_RUNNING_KEY), false)) {
                         startGoogleMapsDrivingMode();
                     } else {
@@ -161,7 +694,7 @@ public class DeviceInputManager {
                 case ACTION_SEND_KEYEVENT:
                     if (extra != null) {
                         try {
-                            sendKeyEvent(Integer.valueOf(extra));
+                            sendKeyEvent(Integer.valueOf(extra), count);
                         } catch (NumberFormatException e) {
                             Log.e(TAG, "Somehow app launch got interpreted as a key press event");
                         }
@@ -177,7 +710,7 @@ public class DeviceInputManager {
 
         // If Spotify is playing, open it in the music player view
         if (packageName.contains("spotify") &&
-                PreferenceManager.getDefaultSharedPreferences(context)
+                getRuntimeState()
                         .getString(context.getString(R.string.PLAYING_AUDIO_APP_KEY), "")
                         .contains("spotify")
                 && i != null) {
@@ -190,6 +723,54 @@ public class DeviceInputManager {
 
     }
 
+    /**
+     * The preferences holding the state written by the main service, such as whether
+     * driving mode is running. Input may be running in its own process, which otherwise
+     * only sees the values from when it first loaded the preferences, so the preferences
+     * are reloaded if the file has changed since.
+     */
+    @SuppressWarnings("deprecation")
+    private SharedPreferences getRuntimeState() {
+        return context.getSharedPreferences(
+                context.getPackageName() + "_preferences",
+                Context.MODE_MULTI_PROCESS
+        );
+    }
+
+    private void adjustVolume(int steps) {
+        int maxVolume = audioManager.getStreamMaxVolume(AudioManager.STREAM_MUSIC);
+        int volume = audioManager.getStreamVolume(AudioManager.STREAM_MUSIC) + steps;
+        volume = Math.max(0, Math.min(maxVolume, volume));
+
+        log("Setting volume to " + volume);
+        audioManager.setStreamVolume(AudioManager.STREAM_MUSIC, volume, AudioManager.FLAG_SHOW_UI);
+    }
+
+    private void adjustBrightness(int amount) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M && !Settings.System.canWrite(context)) {
+            Logger.log(TAG, "No permission to change brightness, " +
+                    "save a brightness binding again to be asked for it");
+            return;
+        }
+
+        ContentResolver contentResolver = context.getContentResolver();
+
+        int brightness = Settings.System.getInt(
+                contentResolver,
+                Settings.System.SCREEN_BRIGHTNESS,
+                MAX_BRIGHTNESS
+        ) + amount;
+        brightness = Math.max(1, Math.min(MAX_BRIGHTNESS, brightness));
+
+        log("Setting brightness to " + brightness);
+        Settings.System.putInt(
+                contentResolver,
+                Settings.System.SCREEN_BRIGHTNESS_MODE,
+                Settings.System.SCREEN_BRIGHTNESS_MODE_MANUAL
+        );
+        Settings.System.putInt(contentResolver, Settings.System.SCREEN_BRIGHTNESS, brightness);
+    }
+
     private void startGoogleMapsDrivingMode() {
         Log.d(TAG, "Launching driving mode");
         context.startActivity(
@@ -220,9 +801,9 @@ public class DeviceInputManager {
         );
     }
 
-    private void sendKeyEvent(int keyCode) {
-        log("Sending key, " + String.valueOf(keyCode));
-        SuperuserManager.getInstance().asyncExecute("input keyevent " + String.valueOf(keyCode));
+    private void sendKeyEvent(int keyCode, int count) {
+        log("Sending key, " + String.valueOf(keyCode) + " x" + count);
+        keyInjector.inject(keyCode, count);
         context.sendBroadcast(new Intent(ACTION_SEND_KEYEVENT).putExtra("keyCode", keyCode));
     }
 
@@ -249,6 +830,15 @@ public class DeviceInputManager {
 
             case ACTION_START_DRIVING_MODE:
                 return context.getString(R.string.map_action_start_driving);
+
+            case ACTION_RUN_MACRO:
+                return context.getString(R.string.map_action_run_macro);
+
+            case ACTION_ADJUST_VOLUME:
+                return context.getString(R.string.map_action_adjust_volume);
+
+            case ACTION_ADJUST_BRIGHTNESS:
+                return context.getString(R.string.map_action_adjust_brightness);
         }
 
         return "";
@@ -1,25 +1,52 @@
 package com.freshollie.headunitcontroller.services.input;
 
+import android.annotation.SuppressLint;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.preference.PreferenceManager;
+import android.util.Log;
+import android.util.SparseArray;
 import android.view.KeyEvent;
 
 import com.freshollie.headunitcontroller.R;
 import com.freshollie.shuttlexpress.ShuttleXpressDevice;
 
+import java.util.HashSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
 /**
  * Created by freshollie on 1/3/17.
  */
 
 public class DeviceKeyMapper {
+    public static final int DEFAULT_REPEAT_DELAY = 400; // Milliseconds
+    public static final int DEFAULT_REPEAT_INTERVAL = 100; // Milliseconds
+
+    private static final String TAG = DeviceKeyMapper.class.getSimpleName();
+
     private SharedPreferences sharedPreferences;
     private Context context;
 
+    private static final Pattern BINDING_PREFERENCE_PATTERN = Pattern.compile("^key(\\d+)_");
+
+    private static final KeyBinding UNBOUND = new KeyBinding(
+            new ActionMap(-1, null),
+            new ActionMap(-1, null),
+            0,
+            false,
+            DEFAULT_REPEAT_DELAY,
+            DEFAULT_REPEAT_INTERVAL
+    );
+
+    // Snapshot of all the bindings, replaced as a whole when the bindings are reloaded
+    private volatile SparseArray<KeyBinding> bindings = new SparseArray<>();
+
     public static class ActionMap {
         private int actionId;
         private String extra;
+        private Macro macro;
 
         public ActionMap(int actionId, String extra) {
             this.actionId = actionId;
@@ -45,6 +72,13 @@ public class DeviceKeyMapper {
             return extra;
         }
 
+        /**
+         * @return the compiled macro, if this action was loaded as part of the bindings
+         */
+        public Macro getMacro() {
+            return macro;
+        }
+
         public String getReadableExtra(Context context) {
             if (getAction().equals(DeviceInputManager.ACTION_SEND_KEYEVENT)) {
                 try {
@@ -73,12 +107,74 @@ public class DeviceKeyMapper {
                 }
                 return appName;
 
+            } else if (getAction().equals(DeviceInputManager.ACTION_RUN_MACRO)) {
+                return getExtra();
+
+            } else if (getAction().equals(DeviceInputManager.ACTION_ADJUST_VOLUME) ||
+                    getAction().equals(DeviceInputManager.ACTION_ADJUST_BRIGHTNESS)) {
+                if (DeviceInputManager.ADJUST_UP.equals(getExtra())) {
+                    return context.getString(R.string.adjust_up);
+                } else if (DeviceInputManager.ADJUST_DOWN.equals(getExtra())) {
+                    return context.getString(R.string.adjust_down);
+                }
+                return context.getString(R.string.error);
+
             } else {
                 return null;
             }
         }
     }
 
+    /**
+     * Everything bound to a key, as loaded by {@link #loadBindings()}
+     */
+    public static class KeyBinding {
+        private final ActionMap pressAction;
+        private final ActionMap holdAction;
+        private final int holdDelay;
+        private final boolean repeatEnabled;
+        private final int repeatDelay;
+        private final int repeatInterval;
+
+        KeyBinding(ActionMap pressAction,
+                   ActionMap holdAction,
+                   int holdDelay,
+                   boolean repeatEnabled,
+                   int repeatDelay,
+                   int repeatInterval) {
+            this.pressAction = pressAction;
+            this.holdAction = holdAction;
+            this.holdDelay = holdDelay;
+            this.repeatEnabled = repeatEnabled;
+            this.repeatDelay = repeatDelay;
+            this.repeatInterval = repeatInterval;
+        }
+
+        public ActionMap getPressAction() {
+            return pressAction;
+        }
+
+        public ActionMap getHoldAction() {
+            return holdAction;
+        }
+
+        public int getHoldDelay() {
+            return holdDelay;
+        }
+
+        public boolean isRepeatEnabled() {
+            return repeatEnabled;
+        }
+
+        public int getRepeatDelay() {
+            return repeatDelay;
+        }
+
+        public int getRepeatInterval() {
+            return repeatInterval;
+        }
+    }
+
     public DeviceKeyMapper(Context appContext) {
         sharedPreferences = PreferenceManager.getDefaultSharedPreferences(appContext);
         context = appContext;
@@ -90,6 +186,70 @@ public class DeviceKeyMapper {
             setDefaults();
         }
 
+        loadBindings();
+    }
+
+    /**
+     * Load the bindings of every key which has been bound, from any input source,
+     * and compile their macros so they are ready to run when the key is pressed.
+     *
+     * The loaded bindings replace the previous snapshot in one go, so they can be
+     * looked up from any thread without locking.
+     */
+    public void loadBindings() {
+        HashSet<Integer> boundKeys = new HashSet<>();
+
+        for (String preference: sharedPreferences.getAll().keySet()) {
+            Matcher matcher = BINDING_PREFERENCE_PATTERN.matcher(preference);
+            if (matcher.find()) {
+                try {
+                    boundKeys.add(Integer.parseInt(matcher.group(1)));
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        }
+
+        SparseArray<KeyBinding> newBindings = new SparseArray<>(boundKeys.size());
+
+        for (int key: boundKeys) {
+            newBindings.put(key, new KeyBinding(
+                    compileAction(key, getKeyPressAction(key)),
+                    compileAction(key, getKeyHoldAction(key)),
+                    getKeyHoldDelay(key),
+                    isKeyRepeatEnabled(key),
+                    getKeyRepeatDelay(key),
+                    getKeyRepeatInterval(key)
+            ));
+        }
+
+        bindings = newBindings;
+    }
+
+    private ActionMap compileAction(int key, ActionMap action) {
+        if (DeviceInputManager.ACTION_RUN_MACRO.equals(action.getAction()) &&
+                action.getExtra() != null) {
+            try {
+                action.macro = Macro.compile(action.getExtra());
+            } catch (IllegalArgumentException e) {
+                Log.e(TAG, "Could not compile macro for key " + key, e);
+            }
+        }
+
+        return action;
+    }
+
+    /**
+     * Lock free lookup of the binding for the given key
+     */
+    public KeyBinding getBinding(int key) {
+        return bindings.get(key, UNBOUND);
+    }
+
+    /**
+     * @return true if the preference is part of a key binding
+     */
+    public static boolean isBindingPreference(String preference) {
+        return preference != null && BINDING_PREFERENCE_PATTERN.matcher(preference).find();
     }
 
     /**
@@ -183,6 +343,7 @@ public class DeviceKeyMapper {
         );
     }
 
+    @SuppressLint("ApplySharedPref")
     public void setKeyAction(int id, int actionId, String extra, boolean hold, int holdLength) {
         SharedPreferences.Editor editor = sharedPreferences.edit();
 
@@ -205,7 +366,10 @@ public class DeviceKeyMapper {
                     context.getString(R.string.pref_key_hold_length_key, id),
                     holdLength);
         }
-        editor.apply();
+
+        // Written straight away, so the input process reads the new binding when it is
+        // told about the change
+        editor.commit();
     }
 
     public void setKeyAction(int id, int actionId, String extra) {
@@ -252,9 +416,44 @@ public class DeviceKeyMapper {
         return sharedPreferences.getInt(context.getString(R.string.pref_key_hold_length_key, id), 0);
     }
 
+    /**
+     * Set the key to repeat its press action while held. The first repeat is
+     * sent after the initial delay and then at every interval until the key is released
+     */
+    @SuppressLint("ApplySharedPref")
+    public void setKeyRepeat(int id, boolean enabled, int initialDelay, int interval) {
+        sharedPreferences.edit()
+                .putBoolean(context.getString(R.string.pref_key_repeat_enabled_key, id), enabled)
+                .putInt(context.getString(R.string.pref_key_repeat_delay_key, id), initialDelay)
+                .putInt(context.getString(R.string.pref_key_repeat_interval_key, id), interval)
+                .commit();
+    }
+
+    public boolean isKeyRepeatEnabled(int id) {
+        return sharedPreferences.getBoolean(
+                context.getString(R.string.pref_key_repeat_enabled_key, id),
+                false
+        );
+    }
+
+    public int getKeyRepeatDelay(int id) {
+        return sharedPreferences.getInt(
+                context.getString(R.string.pref_key_repeat_delay_key, id),
+                DEFAULT_REPEAT_DELAY
+        );
+    }
+
+    public int getKeyRepeatInterval(int id) {
+        return sharedPreferences.getInt(
+                context.getString(R.string.pref_key_repeat_interval_key, id),
+                DEFAULT_REPEAT_INTERVAL
+        );
+    }
+
     public void clear(int key) {
         setKeyAction(key, -1, null);
         setKeyAction(key, -1, null, true, 0);
+        setKeyRepeat(key, false, DEFAULT_REPEAT_DELAY, DEFAULT_REPEAT_INTERVAL);
     }
 
     public void clearAll() {
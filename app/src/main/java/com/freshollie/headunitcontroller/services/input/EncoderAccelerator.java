@@ -0,0 +1,45 @@
+package com.freshollie.headunitcontroller.services.input;
+
+/**
+ * Works out how many steps an encoder tick should move, based on how quickly the ticks
+ * are arriving, so that a slow turn moves one step at a time and a fast spin covers the
+ * whole range in one motion.
+ */
+class EncoderAccelerator {
+    // Tick intervals at or below which the step multiplier applies
+    private static final long[] TICK_INTERVALS = new long[] {25, 50, 90, 150}; // Milliseconds
+    private static final int[] MULTIPLIERS = new int[] {8, 4, 2, 1};
+
+    // Ticks further apart than this are treated as a new motion
+    private static final long MOTION_TIMEOUT = 400; // Milliseconds
+
+    private long lastTickTime = -1;
+    private int lastDirection = 0;
+
+    /**
+     * @param eventTime uptime of the tick
+     * @param direction 1 or -1
+     * @return the number of steps to move for this tick, always at least 1
+     */
+    int getSteps(long eventTime, int direction) {
+        long interval = eventTime - lastTickTime;
+        boolean sameMotion = lastTickTime >= 0 &&
+                direction == lastDirection &&
+                interval < MOTION_TIMEOUT;
+
+        lastTickTime = eventTime;
+        lastDirection = direction;
+
+        if (!sameMotion) {
+            return 1;
+        }
+
+        for (int i = 0; i < TICK_INTERVALS.length; i++) {
+            if (interval <= TICK_INTERVALS[i]) {
+                return MULTIPLIERS[i];
+            }
+        }
+
+        return 1;
+    }
+}
@@ -0,0 +1,288 @@
+package com.freshollie.headunitcontroller.services.input;
+
+import android.os.Process;
+import android.util.Log;
+
+import com.freshollie.headunitcontroller.util.Logger;
+import com.freshollie.headunitcontroller.util.SuperuserManager;
+import com.freshollie.shuttlexpress.ShuttleXpressDevice;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+
+/**
+ * Input from a Shuttle Xpress, read straight from the kernel's hidraw device on rooted units.
+ * This skips the Android USB host stack, so there is less latency and no USB permission to
+ * be granted when the device is attached again.
+ *
+ * Reports are decoded by {@link ShuttleXpressReportDecoder}. Each session is read by its own
+ * thread, which owns its stream, so stopping and starting again straight away, as happens
+ * when the device is reattached, can't be disturbed by the old reader finishing.
+ */
+public class HidrawShuttleInputSource implements InputSource {
+    private static final String TAG = HidrawShuttleInputSource.class.getSimpleName();
+
+    private static final String HIDRAW_CLASS_DIR = "/sys/class/hidraw";
+    private static final String SHUTTLE_XPRESS_HID_ID = "HID_ID=0003:00000B33:00000020";
+
+    // The library's key code for each of the decoder's keys, so the keys are bound the same
+    // whichever Shuttle Xpress source is used
+    private static final int[] LIBRARY_KEY_CODES = new int[ShuttleXpressReportDecoder.NUM_KEYS];
+    static {
+        int[] buttonKeys = ShuttleXpressDevice.KeyCodes.BUTTON_KEYS;
+        LIBRARY_KEY_CODES[ShuttleXpressReportDecoder.KEY_BUTTON_1] = buttonKeys[0];
+        LIBRARY_KEY_CODES[ShuttleXpressReportDecoder.KEY_BUTTON_2] = buttonKeys[1];
+        LIBRARY_KEY_CODES[ShuttleXpressReportDecoder.KEY_BUTTON_3] = buttonKeys[2];
+        LIBRARY_KEY_CODES[ShuttleXpressReportDecoder.KEY_BUTTON_4] = buttonKeys[3];
+        LIBRARY_KEY_CODES[ShuttleXpressReportDecoder.KEY_BUTTON_5] = buttonKeys[4];
+        LIBRARY_KEY_CODES[ShuttleXpressReportDecoder.KEY_WHEEL_LEFT] =
+                ShuttleXpressDevice.KeyCodes.WHEEL_LEFT;
+        LIBRARY_KEY_CODES[ShuttleXpressReportDecoder.KEY_WHEEL_RIGHT] =
+                ShuttleXpressDevice.KeyCodes.WHEEL_RIGHT;
+        LIBRARY_KEY_CODES[ShuttleXpressReportDecoder.KEY_RING_LEFT] =
+                ShuttleXpressDevice.KeyCodes.RING_LEFT;
+        LIBRARY_KEY_CODES[ShuttleXpressReportDecoder.KEY_RING_MIDDLE] =
+                ShuttleXpressDevice.KeyCodes.RING_MIDDLE;
+        LIBRARY_KEY_CODES[ShuttleXpressReportDecoder.KEY_RING_RIGHT] =
+                ShuttleXpressDevice.KeyCodes.RING_RIGHT;
+    }
+
+    private final SuperuserManager superuserManager;
+
+    private KeyListener keyListener;
+    private OnOpenListener openListener;
+    private ShuttleXpressReportDecoder decoder;
+
+    private volatile boolean running = false;
+    private FileInputStream hidrawStream;
+    private Thread readerThread;
+
+    private final KeyListener decoderListener = new KeyListener() {
+        @Override
+        public void onDown(int key) {
+            if (keyListener != null) {
+                keyListener.onDown(LIBRARY_KEY_CODES[key]);
+            }
+        }
+
+        @Override
+        public void onUp(int key) {
+            if (keyListener != null) {
+                keyListener.onUp(LIBRARY_KEY_CODES[key]);
+            }
+        }
+
+        @Override
+        public void onRingPosition(int position) {
+            if (keyListener != null) {
+                keyListener.onRingPosition(position);
+            }
+        }
+    };
+
+    public HidrawShuttleInputSource() {
+        superuserManager = SuperuserManager.getInstance();
+        decoder = new ShuttleXpressReportDecoder(decoderListener);
+    }
+
+    @Override
+    public String getName() {
+        return "Shuttle Xpress (hidraw)";
+    }
+
+    @Override
+    public void setKeyListener(KeyListener listener) {
+        keyListener = listener;
+    }
+
+    @Override
+    public void setOnOpenListener(OnOpenListener listener) {
+        openListener = listener;
+    }
+
+    /**
+     * Find the hidraw node of the Shuttle Xpress by its HID id
+     *
+     * @return null if the device is not attached
+     */
+    public static String findDevicePath() {
+        File[] hidrawDirs = new File(HIDRAW_CLASS_DIR).listFiles();
+        if (hidrawDirs == null) {
+            return null;
+        }
+
+        for (File hidrawDir: hidrawDirs) {
+            File uevent = new File(hidrawDir, "device/uevent");
+
+            try (BufferedReader reader = new BufferedReader(new FileReader(uevent))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.trim().equalsIgnoreCase(SHUTTLE_XPRESS_HID_ID)) {
+                        return "/dev/" + hidrawDir.getName();
+                    }
+                }
+            } catch (IOException ignored) {
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+
+        running = true;
+        readerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_DISPLAY);
+                readReports();
+            }
+        }, TAG);
+        readerThread.start();
+    }
+
+    /**
+     * @return true if this thread is the reader of the current session, and not the reader
+     * of a session which has since been stopped
+     */
+    private synchronized boolean isCurrentReader() {
+        return readerThread == Thread.currentThread();
+    }
+
+    /**
+     * End the current session, if this thread is still its reader
+     */
+    private synchronized void finishReading() {
+        if (isCurrentReader()) {
+            running = false;
+            hidrawStream = null;
+            readerThread = null;
+        }
+    }
+
+    /**
+     * Runs on the session's reader thread. Shared state is only changed while this thread
+     * is still the current reader.
+     */
+    private void readReports() {
+        String devicePath = findDevicePath();
+        if (devicePath == null) {
+            Logger.log(TAG, "Shuttle Xpress hidraw device not found");
+            finishReading();
+            return;
+        }
+
+        // hidraw nodes are only readable by root. Give the node to our uid only, as opening
+        // it up to every app would let any of them log or inject key presses
+        int uid = Process.myUid();
+        if (!superuserManager.execute("chown " + uid + ":" + uid + " " + devicePath) ||
+                !superuserManager.execute("chmod 600 " + devicePath)) {
+            Logger.log(TAG, "Could not get access to " + devicePath);
+            finishReading();
+            return;
+        }
+
+        FileInputStream stream;
+        try {
+            stream = new FileInputStream(devicePath);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not open " + devicePath, e);
+            finishReading();
+            return;
+        }
+
+        synchronized (this) {
+            if (!isCurrentReader()) {
+                // Stopped while we were opening
+                close(stream);
+                return;
+            }
+
+            // Published so that stop can close it to unblock the read
+            hidrawStream = stream;
+            decoder.reset();
+        }
+
+        Logger.log(TAG, "Reading reports from " + devicePath);
+
+        if (openListener != null) {
+            openListener.onOpened(this);
+        }
+
+        // Reports are read into one reusable buffer
+        byte[] reportBuffer = new byte[ShuttleXpressReportDecoder.REPORT_SIZE];
+
+        try {
+            while (isCurrentReader()) {
+                int read = stream.read(reportBuffer, 0, reportBuffer.length);
+                if (read < 0) {
+                    break;
+                } else if (read == reportBuffer.length) {
+                    decode(reportBuffer);
+                }
+            }
+        } catch (IOException e) {
+            if (isCurrentReader()) {
+                Logger.log(TAG, "Shuttle Xpress hidraw read failed: " + e.getMessage());
+            }
+        } finally {
+            close(stream);
+            finishReading();
+        }
+    }
+
+    private synchronized void decode(byte[] report) {
+        // A stopped reader may still be holding a report, which must not reach the decoder
+        if (isCurrentReader()) {
+            decoder.decode(report, 0);
+        }
+    }
+
+    private static void close(FileInputStream stream) {
+        try {
+            stream.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+
+        running = false;
+
+        // Closing the stream unblocks the read
+        if (hidrawStream != null) {
+            close(hidrawStream);
+            hidrawStream = null;
+        }
+
+        if (readerThread != null) {
+            readerThread.interrupt();
+            readerThread = null;
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public void destroy() {
+        stop();
+    }
+
+    public int getRingPosition() {
+        return decoder.getRingPosition();
+    }
+}
@@ -0,0 +1,21 @@
+package com.freshollie.headunitcontroller.services.input;
+
+/**
+ * The Shuttle input connection, key mapping and dispatch, which can either run in
+ * the service's process or in its own input process.
+ */
+public interface InputPipeline {
+    interface OnOpenListener {
+        /**
+         * Called each time an input source has opened its device. Can be called from
+         * any thread.
+         */
+        void onInputOpened();
+    }
+
+    void setOnOpenListener(OnOpenListener listener);
+
+    void start();
+    void stop();
+    void destroy();
+}
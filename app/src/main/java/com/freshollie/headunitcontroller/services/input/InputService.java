@@ -0,0 +1,216 @@
+package com.freshollie.headunitcontroller.services.input;
+
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.Process;
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.freshollie.headunitcontroller.util.Logger;
+import com.freshollie.headunitcontroller.util.SuperuserManager;
+
+/**
+ * Hosts the input pipeline in its own process, so that key handling does not share a heap,
+ * and garbage collection pauses, with the settings UI and the rest of the main service.
+ * The input thread also runs at urgent display priority in this process.
+ *
+ * The main service talks to this service through a messenger, using RemoteInputPipeline.
+ * Log lines and status are sent back to the registered client, along with key events for
+ * the accessibility service, which only runs in the main process.
+ */
+public class InputService extends Service {
+    private static final String TAG = InputService.class.getSimpleName();
+
+    static final int MSG_REGISTER_CLIENT = 1;
+    static final int MSG_START = 2;
+    static final int MSG_STOP = 3;
+    static final int MSG_RELOAD_BINDINGS = 4;
+    static final int MSG_STATUS = 5;
+    static final int MSG_LOG_LINE = 6;
+    static final int MSG_ACCESSIBILITY_KEY = 7;
+    static final int MSG_INPUT_OPENED = 8;
+
+    static final String EXTRA_LOG_LINE = "logLine";
+
+    private DeviceInputManager deviceInputManager;
+    private volatile Messenger client;
+
+    private volatile boolean accessibilityAvailable = false;
+
+    private final Messenger messenger = new Messenger(new Handler() {
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_REGISTER_CLIENT:
+                    client = msg.replyTo;
+                    sendStatus();
+                    break;
+
+                case MSG_START:
+                    // arg2 tells us if the accessibility service is running in the
+                    // main process, so key events can be forwarded to it
+                    accessibilityAvailable = msg.arg2 == 1;
+
+                    // arg1 tells us if the main process has root, in which case we
+                    // need to request it for this process before we can use it
+                    if (msg.arg1 == 1 && !SuperuserManager.getInstance().hasPermission()) {
+                        requestSuperuserThenStart();
+                    } else {
+                        startInput();
+                    }
+                    break;
+
+                case MSG_STOP:
+                    deviceInputManager.stop();
+                    sendStatus();
+                    break;
+
+                case MSG_RELOAD_BINDINGS:
+                    reloadPreferences();
+                    deviceInputManager.reloadBindings();
+                    break;
+
+                default:
+                    super.handleMessage(msg);
+            }
+        }
+    });
+
+    private final AccessibilityBackend.Forwarder accessibilityForwarder =
+            new AccessibilityBackend.Forwarder() {
+                @Override
+                public boolean isAvailable() {
+                    return accessibilityAvailable;
+                }
+
+                @Override
+                public boolean forward(int keyCode, int count) {
+                    return send(Message.obtain(null, MSG_ACCESSIBILITY_KEY, keyCode, count), null);
+                }
+            };
+
+    private final Logger.OnNewLogLineListener logLineListener = new Logger.OnNewLogLineListener() {
+        @Override
+        public void onNewLine(String newLine) {
+            Bundle data = new Bundle();
+            data.putString(EXTRA_LOG_LINE, newLine);
+            send(Message.obtain(null, MSG_LOG_LINE), data);
+        }
+    };
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        Log.d(TAG, "Created in process " + Process.myPid());
+
+        deviceInputManager = new DeviceInputManager(this, Process.THREAD_PRIORITY_URGENT_DISPLAY);
+        deviceInputManager.setAccessibilityForwarder(accessibilityForwarder);
+        deviceInputManager.setOnOpenListener(new InputPipeline.OnOpenListener() {
+            @Override
+            public void onInputOpened() {
+                send(Message.obtain(null, MSG_INPUT_OPENED), null);
+            }
+        });
+        Logger.getInstance().registerOnNewLineListener(logLineListener);
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return messenger.getBinder();
+    }
+
+    @Override
+    public boolean onUnbind(Intent intent) {
+        client = null;
+        return super.onUnbind(intent);
+    }
+
+    @Override
+    public void onDestroy() {
+        Log.d(TAG, "Destroyed");
+        Logger.getInstance().removeOnNewLineListener(logLineListener);
+        deviceInputManager.destroy();
+        super.onDestroy();
+    }
+
+    /**
+     * Preferences are cached per process, so changes made by the main process are not
+     * seen here until the preferences file is reloaded
+     */
+    @SuppressWarnings("deprecation")
+    private void reloadPreferences() {
+        getSharedPreferences(getPackageName() + "_preferences", Context.MODE_MULTI_PROCESS);
+    }
+
+    private void startInput() {
+        reloadPreferences();
+        deviceInputManager.reloadBindings();
+        deviceInputManager.start();
+        sendStatus();
+    }
+
+    private void requestSuperuserThenStart() {
+        final Handler handler = new Handler();
+        final Runnable startRunnable = new Runnable() {
+            @Override
+            public void run() {
+                startInput();
+            }
+        };
+
+        SuperuserManager.getInstance().request(new SuperuserManager.permissionListener() {
+            @Override
+            public void onGranted() {
+                handler.post(startRunnable);
+            }
+
+            @Override
+            public void onDenied() {
+                // Input still works without root, just with fewer backends
+                Log.e(TAG, "Superuser denied in input process");
+                handler.post(startRunnable);
+            }
+        });
+    }
+
+    private void sendStatus() {
+        send(
+                Message.obtain(
+                        null,
+                        MSG_STATUS,
+                        deviceInputManager.isRunning() ? 1 : 0,
+                        deviceInputManager.getReconnectCount()
+                ),
+                null
+        );
+    }
+
+    /**
+     * @return false if there is no client to send to
+     */
+    private boolean send(Message message, Bundle data) {
+        Messenger currentClient = client;
+        if (currentClient == null) {
+            return false;
+        }
+
+        if (data != null) {
+            message.setData(data);
+        }
+
+        try {
+            currentClient.send(message);
+            return true;
+        } catch (RemoteException e) {
+            Log.e(TAG, "Client has gone", e);
+            client = null;
+            return false;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.freshollie.headunitcontroller.services.input;
+
+/**
+ * A device which produces key events, such as the Shuttle Xpress or a steering wheel
+ * button adapter. The device input manager can run several sources at once, and gives
+ * each source its own namespace of key ids so that their keys can be bound separately.
+ *
+ * Sources report their own local key ids, which must be less than
+ * {@link DeviceInputManager#MAX_LOCAL_KEY_ID}.
+ */
+public interface InputSource {
+    interface KeyListener {
+        void onDown(int key);
+        void onUp(int key);
+
+        /**
+         * Called when the deflection of a jog ring changes, from -{@link InputSource#RING_MAX_POSITION}
+         * (full left) to {@link InputSource#RING_MAX_POSITION} (full right). Sources which cannot
+         * measure the deflection report full deflection while the ring is turned.
+         */
+        void onRingPosition(int position);
+    }
+
+    interface OnOpenListener {
+        /**
+         * Called once the source has actually opened its device, which may be some time
+         * after it was started. Can be called from any thread.
+         */
+        void onOpened(InputSource source);
+    }
+
+    int RING_MAX_POSITION = 7;
+
+    String getName();
+
+    void setKeyListener(KeyListener listener);
+
+    void setOnOpenListener(OnOpenListener listener);
+
+    void start();
+
+    void stop();
+
+    boolean isRunning();
+
+    void destroy();
+}
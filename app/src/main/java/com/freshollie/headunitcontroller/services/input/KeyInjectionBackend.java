@@ -0,0 +1,28 @@
+package com.freshollie.headunitcontroller.services.input;
+
+/**
+ * A way of injecting key events into the system. Not every unit can use every
+ * backend, and not every backend can inject every key, so the key injector picks
+ * the best available backend for each key.
+ */
+interface KeyInjectionBackend {
+    String getName();
+
+    /**
+     * @return true if the backend can currently be used on this unit
+     */
+    boolean isAvailable();
+
+    /**
+     * @return true if the backend knows how to inject the given key code
+     */
+    boolean canInject(int keyCode);
+
+    /**
+     * Inject the key event the given number of times. May block until the
+     * key events have been injected.
+     *
+     * @return true if the key events were injected
+     */
+    boolean inject(int keyCode, int count);
+}
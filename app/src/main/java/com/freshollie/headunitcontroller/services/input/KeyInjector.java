@@ -0,0 +1,154 @@
+package com.freshollie.headunitcontroller.services.input;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * Injects key events through the best available backend for each key. Backends are
+ * tried in order of speed, so media keys go straight to the media session, and other
+ * keys go through the root shell, or the accessibility service on units without root.
+ *
+ * Injecting may block until the key events have been injected, so it should only be
+ * called from the action queue's worker thread.
+ */
+class KeyInjector {
+    private static final String TAG = KeyInjector.class.getSimpleName();
+
+    /**
+     * Latency of the injections made through one backend
+     */
+    private static class BackendStats {
+        int numInjections = 0;
+        int numFailures = 0;
+        long totalTime = 0;
+        long maxTime = 0;
+    }
+
+    private final KeyInjectionBackend[] backends;
+    private final BackendStats[] backendStats;
+    private final AccessibilityBackend accessibilityBackend;
+
+    private volatile KeyInjectionBackend[] availableBackends = new KeyInjectionBackend[0];
+
+    KeyInjector(Context context) {
+        accessibilityBackend = new AccessibilityBackend();
+        backends = new KeyInjectionBackend[] {
+                new MediaKeyBackend(context),
+                new RootShellBackend(),
+                accessibilityBackend
+        };
+
+        backendStats = new BackendStats[backends.length];
+        for (int i = 0; i < backends.length; i++) {
+            backendStats[i] = new BackendStats();
+        }
+    }
+
+    /**
+     * Forward accessibility key events to another process, where the accessibility
+     * service is running
+     */
+    void setAccessibilityForwarder(AccessibilityBackend.Forwarder forwarder) {
+        accessibilityBackend.setForwarder(forwarder);
+    }
+
+    /**
+     * Check which backends can be used. Should be called when input starts, as root and
+     * the accessibility service may have been granted since the last start.
+     *
+     * @return the names of the available backends, in the order they will be tried
+     */
+    String selectBackends() {
+        ArrayList<KeyInjectionBackend> available = new ArrayList<>();
+        StringBuilder names = new StringBuilder();
+
+        for (KeyInjectionBackend backend: backends) {
+            if (backend.isAvailable()) {
+                if (names.length() > 0) {
+                    names.append(", ");
+                }
+                names.append(backend.getName());
+                available.add(backend);
+            }
+        }
+
+        availableBackends = available.toArray(new KeyInjectionBackend[available.size()]);
+
+        return names.length() > 0 ? names.toString() : "none";
+    }
+
+    /**
+     * Inject the key event the given number of times
+     *
+     * @return false if no backend could inject the key
+     */
+    boolean inject(int keyCode, int count) {
+        for (KeyInjectionBackend backend: availableBackends) {
+            if (backend.canInject(keyCode)) {
+                long startTime = SystemClock.uptimeMillis();
+                boolean injected = backend.inject(keyCode, count);
+                recordInjection(backend, SystemClock.uptimeMillis() - startTime, injected);
+
+                return injected;
+            }
+        }
+
+        Log.e(TAG, "No backend available to inject key " + keyCode);
+        return false;
+    }
+
+    private synchronized void recordInjection(KeyInjectionBackend backend,
+                                              long time,
+                                              boolean injected) {
+        for (int i = 0; i < backends.length; i++) {
+            if (backends[i] == backend) {
+                BackendStats stats = backendStats[i];
+                stats.numInjections++;
+                stats.totalTime += time;
+                stats.maxTime = Math.max(stats.maxTime, time);
+
+                if (!injected) {
+                    stats.numFailures++;
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the average and max latency of each backend which has been used,
+     * or null if no keys have been injected
+     */
+    synchronized String getLatencyReport() {
+        StringBuilder report = new StringBuilder();
+
+        for (int i = 0; i < backends.length; i++) {
+            BackendStats stats = backendStats[i];
+            if (stats.numInjections < 1) {
+                continue;
+            }
+
+            if (report.length() > 0) {
+                report.append("; ");
+            }
+
+            report.append(backends[i].getName())
+                    .append(": ")
+                    .append(stats.numInjections)
+                    .append(" injections, avg ")
+                    .append(stats.totalTime / stats.numInjections)
+                    .append("ms, max ")
+                    .append(stats.maxTime)
+                    .append("ms");
+
+            if (stats.numFailures > 0) {
+                report.append(", ").append(stats.numFailures).append(" failed");
+            }
+        }
+
+        return report.length() > 0 ? report.toString() : null;
+    }
+}
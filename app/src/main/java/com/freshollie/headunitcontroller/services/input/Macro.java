@@ -0,0 +1,184 @@
+package com.freshollie.headunitcontroller.services.input;
+
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+
+/**
+ * A macro is an ordered list of steps which is stored with a key binding as a compact string,
+ * for example:
+ *
+ *     app:com.spotify.music; wait:com.spotify.music,3000; key:85; delay:500
+ *
+ * Steps are compiled once, when the bindings are loaded, so running a macro does not need to
+ * parse anything or create any action maps.
+ */
+public class Macro {
+    public static final int STEP_LAUNCH_APP = 0;
+    public static final int STEP_WAIT_FOR_APP = 1;
+    public static final int STEP_SEND_KEY = 2;
+    public static final int STEP_DELAY = 3;
+
+    private static final String[] STEP_NAMES = new String[] {
+            "app",
+            "wait",
+            "key",
+            "delay"
+    };
+
+    public static final int DEFAULT_WAIT_TIMEOUT = 5000; // Milliseconds
+
+    private final String source;
+
+    private final int[] stepTypes;
+    private final int[] stepValues;
+    private final String[] stepPackages;
+    private final DeviceKeyMapper.ActionMap[] stepActions;
+
+    private Macro(String source,
+                  int[] stepTypes,
+                  int[] stepValues,
+                  String[] stepPackages,
+                  DeviceKeyMapper.ActionMap[] stepActions) {
+        this.source = source;
+        this.stepTypes = stepTypes;
+        this.stepValues = stepValues;
+        this.stepPackages = stepPackages;
+        this.stepActions = stepActions;
+    }
+
+    /**
+     * Compile the given macro string
+     *
+     * @throws IllegalArgumentException if the macro string is not valid
+     */
+    public static Macro compile(String source) {
+        if (source == null || source.trim().isEmpty()) {
+            throw new IllegalArgumentException("Macro has no steps");
+        }
+
+        ArrayList<String> steps = new ArrayList<>();
+        for (String step: source.split(";")) {
+            if (!step.trim().isEmpty()) {
+                steps.add(step.trim());
+            }
+        }
+
+        int numSteps = steps.size();
+
+        int[] stepTypes = new int[numSteps];
+        int[] stepValues = new int[numSteps];
+        String[] stepPackages = new String[numSteps];
+        DeviceKeyMapper.ActionMap[] stepActions = new DeviceKeyMapper.ActionMap[numSteps];
+
+        for (int i = 0; i < numSteps; i++) {
+            String step = steps.get(i);
+            int separator = step.indexOf(':');
+
+            if (separator < 0) {
+                throw new IllegalArgumentException("Step " + (i + 1) + " has no value: " + step);
+            }
+
+            String name = step.substring(0, separator).trim();
+            String value = step.substring(separator + 1).trim();
+
+            stepTypes[i] = getStepType(name);
+
+            switch (stepTypes[i]) {
+                case STEP_LAUNCH_APP:
+                    if (value.isEmpty()) {
+                        throw new IllegalArgumentException("Step " + (i + 1) + " has no app");
+                    }
+                    stepPackages[i] = value;
+                    stepActions[i] = new DeviceKeyMapper.ActionMap(
+                            DeviceInputManager.getIdFromAction(DeviceInputManager.ACTION_LAUNCH_APP),
+                            value
+                    );
+                    break;
+
+                case STEP_WAIT_FOR_APP:
+                    String[] waitArgs = value.split(",");
+                    if (waitArgs[0].trim().isEmpty()) {
+                        throw new IllegalArgumentException("Step " + (i + 1) + " has no app");
+                    }
+                    stepPackages[i] = waitArgs[0].trim();
+                    stepValues[i] = DEFAULT_WAIT_TIMEOUT;
+
+                    if (waitArgs.length > 1) {
+                        stepValues[i] = parseNumber(waitArgs[1].trim(), i);
+                    }
+                    break;
+
+                case STEP_SEND_KEY:
+                    stepValues[i] = parseNumber(value, i);
+                    stepActions[i] = new DeviceKeyMapper.ActionMap(
+                            DeviceInputManager.getIdFromAction(DeviceInputManager.ACTION_SEND_KEYEVENT),
+                            String.valueOf(stepValues[i])
+                    );
+                    break;
+
+                case STEP_DELAY:
+                    stepValues[i] = parseNumber(value, i);
+                    break;
+            }
+        }
+
+        return new Macro(source, stepTypes, stepValues, stepPackages, stepActions);
+    }
+
+    private static int getStepType(String name) {
+        for (int type = 0; type < STEP_NAMES.length; type++) {
+            if (STEP_NAMES[type].equals(name)) {
+                return type;
+            }
+        }
+
+        throw new IllegalArgumentException(
+                "Unknown step '" + name + "', expected one of " + TextUtils.join(", ", STEP_NAMES)
+        );
+    }
+
+    private static int parseNumber(String value, int stepIndex) {
+        try {
+            int number = Integer.parseInt(value);
+            if (number < 0) {
+                throw new IllegalArgumentException("Step " + (stepIndex + 1) + " is negative");
+            }
+            return number;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(
+                    "Step " + (stepIndex + 1) + " expected a number: " + value
+            );
+        }
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public int getNumSteps() {
+        return stepTypes.length;
+    }
+
+    public int getStepType(int step) {
+        return stepTypes[step];
+    }
+
+    /**
+     * @return the key code, delay, or wait timeout of the step
+     */
+    public int getStepValue(int step) {
+        return stepValues[step];
+    }
+
+    public String getStepPackage(int step) {
+        return stepPackages[step];
+    }
+
+    /**
+     * @return the precompiled action for launch and key steps
+     */
+    public DeviceKeyMapper.ActionMap getStepAction(int step) {
+        return stepActions[step];
+    }
+}
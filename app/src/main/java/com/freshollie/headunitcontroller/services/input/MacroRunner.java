@@ -0,0 +1,130 @@
+package com.freshollie.headunitcontroller.services.input;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.freshollie.headunitcontroller.util.Logger;
+import com.rvalerio.fgchecker.AppChecker;
+
+/**
+ * Runs the steps of a macro on the input thread. Waiting steps are posted back to the
+ * handler instead of sleeping, so key events are still handled while a macro is running.
+ *
+ * Only one macro runs at a time. Starting a new macro, or cancelling, stops the current one
+ * before its next step.
+ */
+class MacroRunner {
+    private static final String TAG = MacroRunner.class.getSimpleName();
+
+    private static final int FOREGROUND_POLL_INTERVAL = 100; // Milliseconds
+
+    interface StepHandler {
+        void onMacroAction(DeviceKeyMapper.ActionMap action);
+    }
+
+    private final Context context;
+    private final Handler handler;
+    private final StepHandler stepHandler;
+    private final AppChecker appChecker = new AppChecker();
+
+    private Macro runningMacro;
+    private int currentStep;
+    private long waitDeadline;
+
+    private final Runnable nextStepRunnable = new Runnable() {
+        @Override
+        public void run() {
+            runSteps();
+        }
+    };
+
+    private final Runnable waitForAppRunnable = new Runnable() {
+        @Override
+        public void run() {
+            checkWaitingForApp();
+        }
+    };
+
+    MacroRunner(Context context, Handler inputHandler, StepHandler stepHandler) {
+        this.context = context;
+        this.handler = inputHandler;
+        this.stepHandler = stepHandler;
+    }
+
+    /**
+     * Must be called from the input thread
+     */
+    void run(Macro macro) {
+        cancel();
+
+        Log.d(TAG, "Running macro: " + macro.getSource());
+        runningMacro = macro;
+        currentStep = 0;
+        runSteps();
+    }
+
+    /**
+     * Must be called from the input thread
+     */
+    void cancel() {
+        if (runningMacro != null) {
+            Log.d(TAG, "Cancelling macro at step " + (currentStep + 1));
+            handler.removeCallbacks(nextStepRunnable);
+            handler.removeCallbacks(waitForAppRunnable);
+            runningMacro = null;
+        }
+    }
+
+    boolean isRunning() {
+        return runningMacro != null;
+    }
+
+    private void runSteps() {
+        while (runningMacro != null && currentStep < runningMacro.getNumSteps()) {
+            int step = currentStep;
+            currentStep++;
+
+            switch (runningMacro.getStepType(step)) {
+                case Macro.STEP_LAUNCH_APP:
+                case Macro.STEP_SEND_KEY:
+                    stepHandler.onMacroAction(runningMacro.getStepAction(step));
+                    break;
+
+                case Macro.STEP_DELAY:
+                    handler.postDelayed(nextStepRunnable, runningMacro.getStepValue(step));
+                    return;
+
+                case Macro.STEP_WAIT_FOR_APP:
+                    // Step back so that the wait knows which app it is waiting for
+                    currentStep = step;
+                    waitDeadline = SystemClock.uptimeMillis() + runningMacro.getStepValue(step);
+                    checkWaitingForApp();
+                    return;
+            }
+        }
+
+        runningMacro = null;
+    }
+
+    private void checkWaitingForApp() {
+        if (runningMacro == null) {
+            return;
+        }
+
+        String waitingPackage = runningMacro.getStepPackage(currentStep);
+
+        if (waitingPackage.equals(appChecker.getForegroundApp(context))) {
+            currentStep++;
+            runSteps();
+
+        } else if (SystemClock.uptimeMillis() >= waitDeadline) {
+            Logger.log(TAG, "Macro stopped, " + waitingPackage + " did not come to the foreground");
+            runningMacro = null;
+
+        } else {
+            handler.postDelayed(waitForAppRunnable, FOREGROUND_POLL_INTERVAL);
+        }
+    }
+}
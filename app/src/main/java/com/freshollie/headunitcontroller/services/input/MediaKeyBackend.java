@@ -0,0 +1,47 @@
+package com.freshollie.headunitcontroller.services.input;
+
+import android.content.Context;
+import android.media.AudioManager;
+import android.os.SystemClock;
+import android.view.KeyEvent;
+
+/**
+ * Dispatches media keys to the active media session in process, through the audio
+ * manager. Needs no permissions, and is much faster than going through a shell.
+ */
+class MediaKeyBackend implements KeyInjectionBackend {
+    private final AudioManager audioManager;
+
+    MediaKeyBackend(Context context) {
+        audioManager = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
+    }
+
+    @Override
+    public String getName() {
+        return "media key";
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return audioManager != null;
+    }
+
+    @Override
+    public boolean canInject(int keyCode) {
+        return KeyEvent.isMediaKey(keyCode);
+    }
+
+    @Override
+    public boolean inject(int keyCode, int count) {
+        for (int i = 0; i < count; i++) {
+            long eventTime = SystemClock.uptimeMillis();
+            audioManager.dispatchMediaKeyEvent(
+                    new KeyEvent(eventTime, eventTime, KeyEvent.ACTION_DOWN, keyCode, 0)
+            );
+            audioManager.dispatchMediaKeyEvent(
+                    new KeyEvent(eventTime, eventTime, KeyEvent.ACTION_UP, keyCode, 0)
+            );
+        }
+        return true;
+    }
+}
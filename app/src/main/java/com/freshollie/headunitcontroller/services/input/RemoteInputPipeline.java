@@ -0,0 +1,193 @@
+package com.freshollie.headunitcontroller.services.input;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.RemoteException;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import com.freshollie.headunitcontroller.services.InputAccessibilityService;
+import com.freshollie.headunitcontroller.util.Logger;
+import com.freshollie.headunitcontroller.util.SuperuserManager;
+
+/**
+ * Runs the input pipeline in the input process, by binding to the InputService. Key
+ * events for the accessibility service are sent back to be performed in this process.
+ *
+ * If the input process dies while input is running, the system restarts it and
+ * input is started again when we reconnect.
+ */
+public class RemoteInputPipeline implements InputPipeline {
+    private static final String TAG = RemoteInputPipeline.class.getSimpleName();
+
+    private final Context context;
+    private final Handler mainThread;
+    private final SharedPreferences sharedPreferences;
+
+    private Messenger service;
+    private OnOpenListener openListener;
+    private boolean bound = false;
+    private boolean running = false;
+
+    private final Messenger replyMessenger;
+
+    private final ServiceConnection serviceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName componentName, IBinder binder) {
+            Log.d(TAG, "Connected to input process");
+            service = new Messenger(binder);
+
+            Message registerMessage = Message.obtain(null, InputService.MSG_REGISTER_CLIENT);
+            registerMessage.replyTo = replyMessenger;
+            send(registerMessage);
+
+            if (running) {
+                sendStart();
+            }
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName componentName) {
+            Logger.log(TAG, "Input process died");
+            service = null;
+        }
+    };
+
+    private final Runnable reloadBindingsRunnable = new Runnable() {
+        @Override
+        public void run() {
+            send(Message.obtain(null, InputService.MSG_RELOAD_BINDINGS));
+        }
+    };
+
+    // Bindings are committed to disk before the listeners are told, so the input process
+    // can reload them straight away. A binding is saved as several preferences, so the
+    // reload is posted to only happen once per edit.
+    private final SharedPreferences.OnSharedPreferenceChangeListener bindingsChangeListener =
+            new SharedPreferences.OnSharedPreferenceChangeListener() {
+                @Override
+                public void onSharedPreferenceChanged(SharedPreferences sharedPreferences,
+                                                      String key) {
+                    if (DeviceKeyMapper.isBindingPreference(key)) {
+                        mainThread.removeCallbacks(reloadBindingsRunnable);
+                        mainThread.post(reloadBindingsRunnable);
+                    }
+                }
+            };
+
+    public RemoteInputPipeline(Context serviceContext) {
+        context = serviceContext;
+        mainThread = new Handler(context.getMainLooper());
+        sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+
+        replyMessenger = new Messenger(new Handler(context.getMainLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                switch (msg.what) {
+                    case InputService.MSG_LOG_LINE:
+                        // Already logged to logcat by the input process
+                        Logger.getInstance().newLogLine(
+                                msg.getData().getString(InputService.EXTRA_LOG_LINE)
+                        );
+                        break;
+
+                    case InputService.MSG_ACCESSIBILITY_KEY:
+                        if (!AccessibilityBackend.performKey(msg.arg1, msg.arg2)) {
+                            Log.e(TAG, "Could not perform forwarded key " + msg.arg1);
+                        }
+                        break;
+
+                    case InputService.MSG_INPUT_OPENED:
+                        if (openListener != null) {
+                            openListener.onInputOpened();
+                        }
+                        break;
+
+                    case InputService.MSG_STATUS:
+                        Log.d(TAG, "Input process status: running " + (msg.arg1 == 1) +
+                                ", reconnects " + msg.arg2);
+                        break;
+
+                    default:
+                        super.handleMessage(msg);
+                }
+            }
+        });
+
+        sharedPreferences.registerOnSharedPreferenceChangeListener(bindingsChangeListener);
+    }
+
+    @Override
+    public void setOnOpenListener(OnOpenListener listener) {
+        openListener = listener;
+    }
+
+    @Override
+    public void start() {
+        running = true;
+
+        if (!bound) {
+            // Input is started when we connect
+            bound = context.bindService(
+                    new Intent(context, InputService.class),
+                    serviceConnection,
+                    Context.BIND_AUTO_CREATE | Context.BIND_IMPORTANT
+            );
+
+            if (!bound) {
+                Log.e(TAG, "Could not bind to input process");
+            }
+        } else {
+            sendStart();
+        }
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        send(Message.obtain(null, InputService.MSG_STOP));
+    }
+
+    @Override
+    public void destroy() {
+        stop();
+        sharedPreferences.unregisterOnSharedPreferenceChangeListener(bindingsChangeListener);
+        mainThread.removeCallbacks(reloadBindingsRunnable);
+
+        if (bound) {
+            context.unbindService(serviceConnection);
+            bound = false;
+            service = null;
+        }
+    }
+
+    private void sendStart() {
+        send(
+                Message.obtain(
+                        null,
+                        InputService.MSG_START,
+                        SuperuserManager.getInstance().hasPermission() ? 1 : 0,
+                        InputAccessibilityService.getInstance() != null ? 1 : 0
+                )
+        );
+    }
+
+    private void send(Message message) {
+        if (service == null) {
+            return;
+        }
+
+        try {
+            service.send(message);
+        } catch (RemoteException e) {
+            Log.e(TAG, "Input process has gone", e);
+        }
+    }
+}
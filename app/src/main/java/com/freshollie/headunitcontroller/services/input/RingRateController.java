@@ -0,0 +1,218 @@
+package com.freshollie.headunitcontroller.services.input;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.media.MediaMetadata;
+import android.media.session.MediaController;
+import android.media.session.MediaSessionManager;
+import android.media.session.PlaybackState;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.freshollie.headunitcontroller.services.GoogleMapsListenerService;
+
+import java.util.List;
+
+/**
+ * Turns the deflection of the jog ring into a rate, instead of a single key press.
+ *
+ * In key mode the ring key's press action is repeated faster the further the ring is turned,
+ * for scrolling through long lists. In seek mode the active media session is seeked through,
+ * faster the further the ring is turned, for seeking through podcasts.
+ *
+ * Runs on a fixed rate tick on the input thread, which only runs while the ring is deflected.
+ */
+class RingRateController {
+    private static final String TAG = RingRateController.class.getSimpleName();
+
+    static final int MODE_OFF = 0;
+    static final int MODE_KEY = 1;
+    static final int MODE_SEEK = 2;
+
+    private static final int TICK_INTERVAL = 100; // Milliseconds
+
+    // Key presses per second for each ring position
+    private static final float[] KEY_RATES = new float[] {0, 2, 4, 6, 10, 15, 20, 30};
+
+    // Milliseconds of media seeked per millisecond for each ring position
+    private static final int[] SEEK_SPEEDS = new int[] {0, 2, 4, 8, 16, 32, 64, 120};
+
+    interface KeyActionHandler {
+        /**
+         * Request the press action of the ring key on the given side
+         */
+        void onRingKeyAction(int direction);
+    }
+
+    private final Context context;
+    private final Handler handler;
+    private final KeyActionHandler keyActionHandler;
+    private final MediaSessionManager mediaSessionManager;
+
+    private int mode = MODE_OFF;
+    private int ringPosition = 0;
+
+    private long nextTickTime;
+    private boolean ticking = false;
+
+    private float keyAccumulator;
+
+    private MediaController seekController;
+    private long seekPosition;
+    private long seekDuration;
+
+    private final Runnable tickRunnable = new Runnable() {
+        @Override
+        public void run() {
+            tick();
+        }
+    };
+
+    RingRateController(Context context, Handler inputHandler, KeyActionHandler keyActionHandler) {
+        this.context = context;
+        this.handler = inputHandler;
+        this.keyActionHandler = keyActionHandler;
+
+        mediaSessionManager =
+                (MediaSessionManager) context.getSystemService(Context.MEDIA_SESSION_SERVICE);
+    }
+
+    void setMode(int mode) {
+        if (this.mode != mode) {
+            stopTicking();
+            this.mode = mode;
+        }
+    }
+
+    /**
+     * @return true if ring key events should be left to the rate controller
+     */
+    boolean isEnabled() {
+        return mode != MODE_OFF;
+    }
+
+    /**
+     * Must be called from the input thread
+     */
+    void onRingPosition(int position) {
+        if (mode == MODE_OFF) {
+            return;
+        }
+
+        position = Math.max(-InputSource.RING_MAX_POSITION,
+                Math.min(InputSource.RING_MAX_POSITION, position));
+
+        int oldPosition = ringPosition;
+        ringPosition = position;
+
+        if (position == 0) {
+            stopTicking();
+        } else if (oldPosition == 0 || Integer.signum(oldPosition) != Integer.signum(position)) {
+            stopTicking();
+            startTicking();
+        }
+    }
+
+    private void startTicking() {
+        ticking = true;
+        keyAccumulator = 1; // So the first key is sent straight away
+
+        if (mode == MODE_SEEK && !startSeeking()) {
+            ticking = false;
+            return;
+        }
+
+        nextTickTime = SystemClock.uptimeMillis();
+        tick();
+    }
+
+    void stopTicking() {
+        if (ticking) {
+            ticking = false;
+            handler.removeCallbacks(tickRunnable);
+            seekController = null;
+        }
+    }
+
+    private void tick() {
+        if (!ticking) {
+            return;
+        }
+
+        int direction = Integer.signum(ringPosition);
+        int speedIndex = Math.abs(ringPosition);
+
+        if (mode == MODE_KEY) {
+            keyAccumulator += KEY_RATES[speedIndex] * TICK_INTERVAL / 1000f;
+
+            while (keyAccumulator >= 1) {
+                keyAccumulator -= 1;
+                keyActionHandler.onRingKeyAction(direction);
+            }
+        } else if (mode == MODE_SEEK) {
+            seekPosition += direction * SEEK_SPEEDS[speedIndex] * TICK_INTERVAL;
+            seekPosition = Math.max(0, seekPosition);
+
+            if (seekDuration > 0) {
+                seekPosition = Math.min(seekDuration, seekPosition);
+            }
+
+            seekController.getTransportControls().seekTo(seekPosition);
+        }
+
+        // Fixed rate, so skip any ticks we have missed rather than bunching them up
+        long now = SystemClock.uptimeMillis();
+        do {
+            nextTickTime += TICK_INTERVAL;
+        } while (nextTickTime <= now);
+
+        handler.postAtTime(tickRunnable, nextTickTime);
+    }
+
+    /**
+     * Find the active media session and the position to start seeking from
+     *
+     * @return false if there is nothing to seek
+     */
+    private boolean startSeeking() {
+        List<MediaController> controllers;
+
+        try {
+            controllers = mediaSessionManager.getActiveSessions(
+                    new ComponentName(context, GoogleMapsListenerService.class)
+            );
+        } catch (SecurityException e) {
+            Log.e(TAG, "No permission to read media sessions", e);
+            return false;
+        }
+
+        for (MediaController controller: controllers) {
+            PlaybackState state = controller.getPlaybackState();
+
+            if (state != null &&
+                    !controller.getPackageName().equals(context.getPackageName()) &&
+                    (state.getActions() & PlaybackState.ACTION_SEEK_TO) != 0 &&
+                    (state.getState() == PlaybackState.STATE_PLAYING ||
+                            state.getState() == PlaybackState.STATE_PAUSED)) {
+                seekController = controller;
+                seekPosition = state.getPosition();
+
+                if (state.getState() == PlaybackState.STATE_PLAYING) {
+                    seekPosition += (long) ((SystemClock.elapsedRealtime() -
+                            state.getLastPositionUpdateTime()) * state.getPlaybackSpeed());
+                }
+
+                MediaMetadata metadata = controller.getMetadata();
+                seekDuration = metadata != null ?
+                        metadata.getLong(MediaMetadata.METADATA_KEY_DURATION) :
+                        0;
+
+                Log.d(TAG, "Seeking " + controller.getPackageName() + " from " + seekPosition);
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
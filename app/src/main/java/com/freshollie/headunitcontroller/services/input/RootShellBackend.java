@@ -0,0 +1,39 @@
+package com.freshollie.headunitcontroller.services.input;
+
+import com.freshollie.headunitcontroller.util.SuperuserManager;
+
+/**
+ * Injects key events with the input command through the superuser shell. This can inject
+ * any key, but is slow as each injection starts a new shell.
+ */
+class RootShellBackend implements KeyInjectionBackend {
+    private final SuperuserManager superuserManager = SuperuserManager.getInstance();
+
+    @Override
+    public String getName() {
+        return "root shell";
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return superuserManager.hasPermission();
+    }
+
+    @Override
+    public boolean canInject(int keyCode) {
+        return true;
+    }
+
+    /**
+     * Inject the key event the given number of times, with one shell command
+     */
+    @Override
+    public boolean inject(int keyCode, int count) {
+        StringBuilder command = new StringBuilder("input keyevent");
+        for (int i = 0; i < count; i++) {
+            command.append(' ').append(keyCode);
+        }
+
+        return superuserManager.execute(command.toString());
+    }
+}
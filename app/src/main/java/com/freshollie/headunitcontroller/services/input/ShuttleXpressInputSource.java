@@ -0,0 +1,106 @@
+package com.freshollie.headunitcontroller.services.input;
+
+import android.content.Context;
+
+import com.freshollie.shuttlexpress.ShuttleXpressConnection;
+import com.freshollie.shuttlexpress.ShuttleXpressDevice;
+
+/**
+ * Input from a Shuttle Xpress, through the Android USB host connection of the
+ * Shuttle Xpress library. Key ids are the library's key codes.
+ */
+public class ShuttleXpressInputSource implements InputSource {
+    public static final int VENDOR_ID = 0x0B33;
+    public static final int PRODUCT_ID = 0x0020;
+
+    private final ShuttleXpressConnection deviceConnection;
+    private final ShuttleXpressDevice inputDevice;
+
+    private KeyListener keyListener;
+    private OnOpenListener openListener;
+
+    private final ShuttleXpressDevice.KeyListener deviceKeyListener =
+            new ShuttleXpressDevice.KeyListener() {
+                @Override
+                public void onDown(int id) {
+                    if (keyListener != null) {
+                        keyListener.onDown(id);
+
+                        // The library only tells us which side the ring is turned to
+                        if (id == ShuttleXpressDevice.KeyCodes.RING_LEFT) {
+                            keyListener.onRingPosition(-RING_MAX_POSITION);
+                        } else if (id == ShuttleXpressDevice.KeyCodes.RING_RIGHT) {
+                            keyListener.onRingPosition(RING_MAX_POSITION);
+                        }
+                    }
+                }
+
+                @Override
+                public void onUp(int id) {
+                    if (keyListener != null) {
+                        keyListener.onUp(id);
+
+                        if (id == ShuttleXpressDevice.KeyCodes.RING_LEFT ||
+                                id == ShuttleXpressDevice.KeyCodes.RING_RIGHT) {
+                            keyListener.onRingPosition(0);
+                        }
+                    }
+                }
+            };
+
+    public ShuttleXpressInputSource(Context context) {
+        deviceConnection = new ShuttleXpressConnection(context);
+        deviceConnection.setShowNotifications(true);
+
+        inputDevice = deviceConnection.getDevice();
+        inputDevice.registerKeyListener(deviceKeyListener);
+    }
+
+    @Override
+    public String getName() {
+        return "Shuttle Xpress";
+    }
+
+    @Override
+    public void setKeyListener(KeyListener listener) {
+        keyListener = listener;
+    }
+
+    @Override
+    public void setOnOpenListener(OnOpenListener listener) {
+        openListener = listener;
+    }
+
+    /**
+     * The library opens the connection in open(), so the source has opened if the
+     * connection is running once it returns
+     */
+    @Override
+    public void start() {
+        if (!deviceConnection.isRunning()) {
+            deviceConnection.open();
+
+            if (deviceConnection.isRunning() && openListener != null) {
+                openListener.onOpened(this);
+            }
+        }
+    }
+
+    @Override
+    public void stop() {
+        if (deviceConnection.isRunning()) {
+            deviceConnection.close();
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return deviceConnection.isRunning();
+    }
+
+    @Override
+    public void destroy() {
+        stop();
+        inputDevice.unregisterKeyListener(deviceKeyListener);
+    }
+}
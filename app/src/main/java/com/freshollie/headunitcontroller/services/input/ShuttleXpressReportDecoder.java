@@ -0,0 +1,169 @@
+package com.freshollie.headunitcontroller.services.input;
+
+/**
+ * Decodes the raw 5 byte HID reports of the Shuttle Xpress into the same key events
+ * which the Shuttle Xpress library produces.
+ *
+ * Report layout:
+ *
+ *     byte 0: ring position, signed, -7 (full left) to 7 (full right)
+ *     byte 1: wheel counter, unsigned, incremented for each click clockwise
+ *     byte 2: unused
+ *     byte 3: buttons 1 to 4 in bits 4 to 7
+ *     byte 4: button 5 in bit 0
+ *
+ * The decoder only keeps the state of the last report and does not allocate anything
+ * per report. It reports its own key codes below and has no Android or library
+ * dependencies, so it can be run against captured report streams on a desktop JVM.
+ */
+public class ShuttleXpressReportDecoder {
+    public static final int REPORT_SIZE = 5;
+
+    public static final int KEY_BUTTON_1 = 0;
+    public static final int KEY_BUTTON_2 = 1;
+    public static final int KEY_BUTTON_3 = 2;
+    public static final int KEY_BUTTON_4 = 3;
+    public static final int KEY_BUTTON_5 = 4;
+    public static final int KEY_WHEEL_LEFT = 5;
+    public static final int KEY_WHEEL_RIGHT = 6;
+    public static final int KEY_RING_LEFT = 7;
+    public static final int KEY_RING_MIDDLE = 8;
+    public static final int KEY_RING_RIGHT = 9;
+
+    public static final int NUM_KEYS = 10;
+
+    private static final int[] BUTTON_KEYS = new int[] {
+            KEY_BUTTON_1,
+            KEY_BUTTON_2,
+            KEY_BUTTON_3,
+            KEY_BUTTON_4,
+            KEY_BUTTON_5
+    };
+
+    private final InputSource.KeyListener keyListener;
+
+    private boolean hasLastReport = false;
+    private int ringPosition = 0;
+    private int wheelCounter = 0;
+    private int buttonMask = 0;
+
+    public ShuttleXpressReportDecoder(InputSource.KeyListener keyListener) {
+        this.keyListener = keyListener;
+    }
+
+    /**
+     * Forget the last report, so the next report is used as the starting state
+     */
+    public void reset() {
+        hasLastReport = false;
+        ringPosition = 0;
+        wheelCounter = 0;
+        buttonMask = 0;
+    }
+
+    /**
+     * Decode the report at the given offset of the buffer, calling the key listener for
+     * every change since the last report
+     */
+    public void decode(byte[] buffer, int offset) {
+        int newRingPosition = buffer[offset];
+        int newWheelCounter = buffer[offset + 1] & 0xFF;
+        int newButtonMask = ((buffer[offset + 3] & 0xF0) >> 4) | ((buffer[offset + 4] & 0x01) << 4);
+
+        if (!hasLastReport) {
+            // The wheel counter is not zeroed when the device is opened, so the first report
+            // only gives us a starting point
+            hasLastReport = true;
+            wheelCounter = newWheelCounter;
+        }
+
+        decodeButtons(newButtonMask);
+        decodeWheel(newWheelCounter);
+        decodeRing(newRingPosition);
+    }
+
+    /**
+     * Decode every whole report in the given stream of reports
+     */
+    public void decodeStream(byte[] stream, int length) {
+        for (int offset = 0; offset + REPORT_SIZE <= length; offset += REPORT_SIZE) {
+            decode(stream, offset);
+        }
+    }
+
+    private void decodeButtons(int newButtonMask) {
+        int changed = newButtonMask ^ buttonMask;
+        buttonMask = newButtonMask;
+
+        for (int button = 0; button < BUTTON_KEYS.length && changed != 0; button++) {
+            int bit = 1 << button;
+            if ((changed & bit) != 0) {
+                changed &= ~bit;
+                if ((newButtonMask & bit) != 0) {
+                    keyListener.onDown(BUTTON_KEYS[button]);
+                } else {
+                    keyListener.onUp(BUTTON_KEYS[button]);
+                }
+            }
+        }
+    }
+
+    private void decodeWheel(int newWheelCounter) {
+        // Counter wraps at 255, so the signed byte difference gives the direction
+        int delta = (byte) (newWheelCounter - wheelCounter);
+        wheelCounter = newWheelCounter;
+
+        int key = delta > 0 ? KEY_WHEEL_RIGHT : KEY_WHEEL_LEFT;
+
+        for (int i = 0; i < Math.abs(delta); i++) {
+            keyListener.onDown(key);
+            keyListener.onUp(key);
+        }
+    }
+
+    private void decodeRing(int newRingPosition) {
+        if (newRingPosition == ringPosition) {
+            return;
+        }
+
+        int oldZone = Integer.signum(ringPosition);
+        int newZone = Integer.signum(newRingPosition);
+        ringPosition = newRingPosition;
+
+        keyListener.onRingPosition(newRingPosition);
+
+        if (oldZone == newZone) {
+            return;
+        }
+
+        if (oldZone != 0) {
+            keyListener.onUp(getRingKey(oldZone));
+        }
+
+        keyListener.onDown(getRingKey(newZone));
+
+        if (newZone == 0) {
+            keyListener.onUp(KEY_RING_MIDDLE);
+        }
+    }
+
+    private static int getRingKey(int zone) {
+        if (zone < 0) {
+            return KEY_RING_LEFT;
+        } else if (zone > 0) {
+            return KEY_RING_RIGHT;
+        }
+        return KEY_RING_MIDDLE;
+    }
+
+    /**
+     * @return the position of the ring in the last report, from -7 to 7
+     */
+    public int getRingPosition() {
+        return ringPosition;
+    }
+
+    public int getButtonMask() {
+        return buttonMask;
+    }
+}
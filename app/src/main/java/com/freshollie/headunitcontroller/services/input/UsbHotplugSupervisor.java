@@ -0,0 +1,173 @@
+package com.freshollie.headunitcontroller.services.input;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbManager;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.freshollie.headunitcontroller.util.Logger;
+
+/**
+ * Watches for a USB device being detached and attached again while its connection should be
+ * open, for example from a loose hub, and reopens the connection when the device comes back.
+ *
+ * A reopen is checked after a short delay, and retried with an increasing backoff
+ * up to a maximum number of attempts.
+ */
+class UsbHotplugSupervisor {
+    private static final String TAG = UsbHotplugSupervisor.class.getSimpleName();
+
+    private static final int INITIAL_BACKOFF = 250; // Milliseconds
+    private static final int MAX_BACKOFF = 4000; // Milliseconds
+    private static final int VERIFY_DELAY = 500; // Milliseconds
+    private static final int MAX_ATTEMPTS = 6;
+
+    interface Connection {
+        String getName();
+        void open();
+        void close();
+        boolean isOpen();
+    }
+
+    private final Context context;
+    private final Handler handler;
+    private final int vendorId;
+    private final int productId;
+    private final Connection connection;
+
+    private boolean supervising = false;
+
+    private int attempt = 0;
+    private long lostTime = -1;
+
+    private int numReconnects = 0;
+    private long totalReconnectTime = 0;
+
+    private final BroadcastReceiver usbReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            UsbDevice device = intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
+            if (device == null ||
+                    device.getVendorId() != vendorId ||
+                    device.getProductId() != productId) {
+                return;
+            }
+
+            if (UsbManager.ACTION_USB_DEVICE_DETACHED.equals(intent.getAction())) {
+                onDetached();
+            } else if (UsbManager.ACTION_USB_DEVICE_ATTACHED.equals(intent.getAction())) {
+                onAttached();
+            }
+        }
+    };
+
+    private final Runnable reopenRunnable = new Runnable() {
+        @Override
+        public void run() {
+            attempt++;
+            Log.d(TAG, "Reopening " + connection.getName() + ", attempt " + attempt);
+
+            connection.close();
+            connection.open();
+
+            handler.postDelayed(verifyRunnable, VERIFY_DELAY);
+        }
+    };
+
+    private final Runnable verifyRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (connection.isOpen()) {
+                onReconnected();
+            } else if (attempt < MAX_ATTEMPTS) {
+                long backoff = Math.min(MAX_BACKOFF, INITIAL_BACKOFF << attempt);
+                Log.d(TAG, "Reopen failed, retrying in " + backoff + "ms");
+                handler.postDelayed(reopenRunnable, backoff);
+            } else {
+                Logger.log(TAG, "Could not reopen " + connection.getName() +
+                        " after " + attempt + " attempts");
+                attempt = 0;
+            }
+        }
+    };
+
+    UsbHotplugSupervisor(Context context,
+                         Handler handler,
+                         int vendorId,
+                         int productId,
+                         Connection connection) {
+        this.context = context;
+        this.handler = handler;
+        this.vendorId = vendorId;
+        this.productId = productId;
+        this.connection = connection;
+    }
+
+    void start() {
+        if (!supervising) {
+            supervising = true;
+
+            IntentFilter filter = new IntentFilter();
+            filter.addAction(UsbManager.ACTION_USB_DEVICE_ATTACHED);
+            filter.addAction(UsbManager.ACTION_USB_DEVICE_DETACHED);
+            context.registerReceiver(usbReceiver, filter, null, handler);
+        }
+    }
+
+    void stop() {
+        if (supervising) {
+            supervising = false;
+
+            context.unregisterReceiver(usbReceiver);
+            cancelReconnect();
+        }
+    }
+
+    private void cancelReconnect() {
+        handler.removeCallbacks(reopenRunnable);
+        handler.removeCallbacks(verifyRunnable);
+        attempt = 0;
+    }
+
+    private void onDetached() {
+        Logger.log(TAG, connection.getName() + " detached");
+        cancelReconnect();
+
+        lostTime = SystemClock.elapsedRealtime();
+        connection.close();
+    }
+
+    private void onAttached() {
+        Logger.log(TAG, connection.getName() + " attached, reconnecting");
+        cancelReconnect();
+
+        if (lostTime < 0) {
+            // We did not see the device go, so time the reconnect from now
+            lostTime = SystemClock.elapsedRealtime();
+        }
+
+        handler.postDelayed(reopenRunnable, INITIAL_BACKOFF);
+    }
+
+    private void onReconnected() {
+        numReconnects++;
+        long reconnectTime = SystemClock.elapsedRealtime() - lostTime;
+        totalReconnectTime += reconnectTime;
+
+        Logger.log(TAG, connection.getName() + " reconnected in " + reconnectTime + "ms" +
+                " (attempt " + attempt + ", " + numReconnects + " reconnects, average " +
+                totalReconnectTime / numReconnects + "ms)");
+
+        attempt = 0;
+        lostTime = -1;
+    }
+
+    int getReconnectCount() {
+        return numReconnects;
+    }
+}
@@ -4,20 +4,28 @@ import android.annotation.SuppressLint;
 import android.app.Dialog;
 import android.app.DialogFragment;
 import android.content.DialogInterface;
+import android.content.Intent;
 import android.content.pm.PackageInfo;
+import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
+import android.provider.Settings;
 import android.support.v7.app.AlertDialog;
 import android.view.KeyEvent;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
+import android.widget.CheckBox;
+import android.widget.CompoundButton;
 import android.widget.EditText;
 import android.widget.Spinner;
+import android.widget.Toast;
 
 import com.freshollie.headunitcontroller.R;
 import com.freshollie.headunitcontroller.services.input.DeviceInputManager;
 import com.freshollie.headunitcontroller.services.input.DeviceKeyMapper;
+import com.freshollie.headunitcontroller.services.input.Macro;
 import com.freshollie.shuttlexpress.ShuttleXpressDevice;
 
 import java.util.Arrays;
@@ -42,6 +50,10 @@ public class KeySetDialog extends DialogFragment {
     private Spinner pressActionSpinner;
     private EditText pressExtraEditText;
 
+    private CheckBox repeatCheckBox;
+    private EditText repeatDelayEditText;
+    private EditText repeatIntervalEditText;
+
     private EditText holdDelayEditText;
     private Spinner holdActionSpinner;
     private EditText holdExtraEditText;
@@ -118,6 +130,10 @@ public class KeySetDialog extends DialogFragment {
         pressActionSpinner = (Spinner) v.findViewById(R.id.press_action_spinner);
         pressExtraEditText = (EditText) v.findViewById(R.id.press_extra_input);
 
+        repeatCheckBox = (CheckBox) v.findViewById(R.id.repeat_checkbox);
+        repeatDelayEditText = (EditText) v.findViewById(R.id.repeat_delay_input);
+        repeatIntervalEditText = (EditText) v.findViewById(R.id.repeat_interval_input);
+
         holdActionSpinner = (Spinner) v.findViewById(R.id.hold_action_spinner);
         holdDelayEditText = (EditText) v.findViewById(R.id.hold_delay_input);
         holdExtraEditText = (EditText) v.findViewById(R.id.hold_extra_input);
@@ -153,6 +169,13 @@ public class KeySetDialog extends DialogFragment {
                             .equals(DeviceInputManager.ACTION_SEND_KEYEVENT)) {
                         extraPlacement = getString(R.string.select_key_holder);
 
+                    } else if (pressAction.getAction()
+                            .equals(DeviceInputManager.ACTION_RUN_MACRO)) {
+                        extraPlacement = getString(R.string.macro_holder);
+
+                    } else if (isAdjustAction(pressAction)) {
+                        extraPlacement = getString(R.string.select_direction_holder);
+
                     } else {
                         pressExtraEditText.setEnabled(false);
 
@@ -179,10 +202,28 @@ public class KeySetDialog extends DialogFragment {
                     showSelectAppDialog(pressExtraEditText, pressAction);
                 } else if (pressAction.getAction().equals(DeviceInputManager.ACTION_SEND_KEYEVENT)){
                     showKeySelectDialog(pressExtraEditText, pressAction);
+                } else if (pressAction.getAction().equals(DeviceInputManager.ACTION_RUN_MACRO)) {
+                    showMacroEditDialog(pressExtraEditText, pressAction);
+                } else if (isAdjustAction(pressAction)) {
+                    showDirectionSelectDialog(pressExtraEditText, pressAction);
                 }
             }
         });
 
+        repeatCheckBox.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton compoundButton, boolean checked) {
+                repeatDelayEditText.setEnabled(checked);
+                repeatIntervalEditText.setEnabled(checked);
+            }
+        });
+
+        repeatCheckBox.setChecked(keyMapper.isKeyRepeatEnabled(key));
+        repeatDelayEditText.setEnabled(repeatCheckBox.isChecked());
+        repeatIntervalEditText.setEnabled(repeatCheckBox.isChecked());
+        repeatDelayEditText.setText(String.valueOf(keyMapper.getKeyRepeatDelay(key)));
+        repeatIntervalEditText.setText(String.valueOf(keyMapper.getKeyRepeatInterval(key)));
+
         holdDelayEditText.setText(String.valueOf(keyMapper.getKeyHoldDelay(key)));
 
 
@@ -207,6 +248,13 @@ public class KeySetDialog extends DialogFragment {
                             .equals(DeviceInputManager.ACTION_SEND_KEYEVENT)) {
                         extraPlacement = getString(R.string.select_key_holder);
 
+                    } else if (holdAction.getAction()
+                            .equals(DeviceInputManager.ACTION_RUN_MACRO)) {
+                        extraPlacement = getString(R.string.macro_holder);
+
+                    } else if (isAdjustAction(holdAction)) {
+                        extraPlacement = getString(R.string.select_direction_holder);
+
                     } else {
                         holdExtraEditText.setEnabled(false);
 
@@ -230,6 +278,10 @@ public class KeySetDialog extends DialogFragment {
                     showSelectAppDialog(holdExtraEditText, holdAction);
                 } else if (holdAction.getAction().equals(DeviceInputManager.ACTION_SEND_KEYEVENT)){
                     showKeySelectDialog(holdExtraEditText, holdAction);
+                } else if (holdAction.getAction().equals(DeviceInputManager.ACTION_RUN_MACRO)) {
+                    showMacroEditDialog(holdExtraEditText, holdAction);
+                } else if (isAdjustAction(holdAction)) {
+                    showDirectionSelectDialog(holdExtraEditText, holdAction);
                 }
             }
         });
@@ -270,6 +322,80 @@ public class KeySetDialog extends DialogFragment {
                 .show();
     }
 
+    private static boolean isAdjustAction(DeviceKeyMapper.ActionMap action) {
+        return action.getAction().equals(DeviceInputManager.ACTION_ADJUST_VOLUME) ||
+                action.getAction().equals(DeviceInputManager.ACTION_ADJUST_BRIGHTNESS);
+    }
+
+    public void showDirectionSelectDialog(final EditText resultHolder, final DeviceKeyMapper.ActionMap editMap) {
+        final String[] directions = new String[] {
+                DeviceInputManager.ADJUST_UP,
+                DeviceInputManager.ADJUST_DOWN
+        };
+
+        int selectedDirection = -1;
+        for (int i = 0; i < directions.length; i++) {
+            if (directions[i].equals(editMap.getExtra())) {
+                selectedDirection = i;
+            }
+        }
+
+        new AlertDialog.Builder(getActivity())
+                .setTitle(R.string.select_direction_title)
+                .setSingleChoiceItems(
+                        new String[] {getString(R.string.adjust_up), getString(R.string.adjust_down)},
+                        selectedDirection,
+                        new DialogInterface.OnClickListener() {
+                            @Override
+                            public void onClick(DialogInterface dialogInterface, int i) {
+                                editMap.setExtra(directions[i]);
+                                resultHolder.setText(editMap.getReadableExtra(getActivity()));
+                                dialogInterface.dismiss();
+                            }
+                        })
+                .setPositiveButton(android.R.string.cancel,
+                        new DialogInterface.OnClickListener() {
+                            @Override
+                            public void onClick(DialogInterface dialogInterface, int i) {
+                                dialogInterface.dismiss();
+                            }
+                        })
+                .show();
+    }
+
+    public void showMacroEditDialog(final EditText resultHolder, final DeviceKeyMapper.ActionMap editMap) {
+        final EditText macroEditText = new EditText(getActivity());
+        macroEditText.setHint(R.string.macro_edit_hint);
+        macroEditText.setText(editMap.getExtra());
+
+        new AlertDialog.Builder(getActivity())
+                .setTitle(R.string.macro_edit_title)
+                .setMessage(R.string.macro_edit_message)
+                .setView(macroEditText)
+                .setPositiveButton(android.R.string.ok,
+                        new DialogInterface.OnClickListener() {
+                            @Override
+                            public void onClick(DialogInterface dialogInterface, int i) {
+                                String macro = macroEditText.getText().toString().trim();
+                                if (macro.isEmpty()) {
+                                    macro = null;
+                                }
+
+                                editMap.setExtra(macro);
+                                resultHolder.setText(editMap.getReadableExtra(getActivity()));
+                                dialogInterface.dismiss();
+                            }
+                        })
+                .setNegativeButton(android.R.string.cancel,
+                        new DialogInterface.OnClickListener() {
+                            @Override
+                            public void onClick(DialogInterface dialogInterface, int i) {
+                                dialogInterface.dismiss();
+                            }
+                        })
+                .show();
+    }
+
     public void showSelectAppDialog(final EditText resultHolder, final DeviceKeyMapper.ActionMap editMap) {
         final HashMap<String, String> packages = getInstalledPackages();
 
@@ -337,6 +463,32 @@ public class KeySetDialog extends DialogFragment {
                 (holdAction.getAction().equals(DeviceInputManager.ACTION_SEND_KEYEVENT) &&
                         holdAction.getExtra() == null)) {
             dialogText = getString(R.string.error_no_key_selected);
+
+        } else if ((pressAction.getAction().equals(DeviceInputManager.ACTION_RUN_MACRO) &&
+                pressAction.getExtra() == null) ||
+                (holdAction.getAction().equals(DeviceInputManager.ACTION_RUN_MACRO) &&
+                        holdAction.getExtra() == null)) {
+            dialogText = getString(R.string.error_no_macro_entered);
+
+        } else if ((isAdjustAction(pressAction) && pressAction.getExtra() == null) ||
+                (isAdjustAction(holdAction) && holdAction.getExtra() == null)) {
+            dialogText = getString(R.string.error_no_direction_selected);
+
+        } else if (repeatCheckBox.isChecked() &&
+                !pressAction.getAction().equals(DeviceInputManager.ACTION_SEND_KEYEVENT)) {
+            dialogText = getString(R.string.error_repeat_needs_key);
+        }
+
+        if (dialogText.isEmpty()) {
+            for (DeviceKeyMapper.ActionMap action: new DeviceKeyMapper.ActionMap[] {pressAction, holdAction}) {
+                if (action.getAction().equals(DeviceInputManager.ACTION_RUN_MACRO)) {
+                    try {
+                        Macro.compile(action.getExtra());
+                    } catch (IllegalArgumentException e) {
+                        dialogText = getString(R.string.error_invalid_macro, e.getMessage());
+                    }
+                }
+            }
         }
 
         if (!dialogText.isEmpty()) {
@@ -362,6 +514,18 @@ public class KeySetDialog extends DialogFragment {
             }
         }
 
+        int repeatDelay = DeviceKeyMapper.DEFAULT_REPEAT_DELAY;
+        int repeatInterval = DeviceKeyMapper.DEFAULT_REPEAT_INTERVAL;
+
+        if (!repeatDelayEditText.getText().toString().isEmpty()) {
+            repeatDelay = Math.max(0, Integer.parseInt(repeatDelayEditText.getText().toString()));
+        }
+
+        if (!repeatIntervalEditText.getText().toString().isEmpty()) {
+            repeatInterval = Math.max(0, Integer.parseInt(repeatIntervalEditText.getText().toString()));
+        }
+
+        keyMapper.setKeyRepeat(key, repeatCheckBox.isChecked(), repeatDelay, repeatInterval);
         keyMapper.setKeyAction(key, pressAction.getActionId(), pressAction.getExtra());
         keyMapper.setKeyAction(
                 key,
@@ -371,9 +535,36 @@ public class KeySetDialog extends DialogFragment {
                 holdDelay
         );
 
+        if (pressAction.getAction().equals(DeviceInputManager.ACTION_ADJUST_BRIGHTNESS) ||
+                holdAction.getAction().equals(DeviceInputManager.ACTION_ADJUST_BRIGHTNESS)) {
+            requestWriteSettingsPermission();
+        }
+
         return true;
     }
 
+    /**
+     * Brightness is a system setting, which needs permission to be changed from M
+     */
+    private void requestWriteSettingsPermission() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M ||
+                Settings.System.canWrite(getActivity())) {
+            return;
+        }
+
+        startActivity(
+                new Intent(
+                        Settings.ACTION_MANAGE_WRITE_SETTINGS,
+                        Uri.parse("package:" + getActivity().getPackageName())
+                ).setFlags(Intent.FLAG_ACTIVITY_NEW_TASK)
+        );
+        Toast.makeText(
+                getActivity(),
+                R.string.notify_no_write_settings_permission,
+                Toast.LENGTH_LONG
+        ).show();
+    }
+
     @Override
     public void onDismiss(DialogInterface dialog) {
         super.onDismiss(dialog);
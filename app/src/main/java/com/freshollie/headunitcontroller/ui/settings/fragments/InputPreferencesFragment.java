@@ -8,6 +8,7 @@ import android.app.AlertDialog;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.os.Bundle;
+import android.preference.ListPreference;
 import android.preference.Preference;
 import android.preference.PreferenceCategory;
 import android.preference.PreferenceFragment;
@@ -36,6 +37,9 @@ public class InputPreferencesFragment extends PreferenceFragment {
 
     Preference defaultsPreference;
     Preference startInputPreference;
+    SwitchPreference hidrawPreference;
+    SwitchPreference isolatedProcessPreference;
+    ListPreference ringModePreference;
 
     PreferenceCategory buttonCategory;
     PreferenceCategory wheelCategory;
@@ -89,6 +93,11 @@ public class InputPreferencesFragment extends PreferenceFragment {
         }
 
         if (!hold) {
+            if (keyMapper.isKeyRepeatEnabled(key)) {
+                summary += ", repeat after " + keyMapper.getKeyRepeatDelay(key) +
+                        "ms every " + keyMapper.getKeyRepeatInterval(key) + "ms";
+            }
+
             summary += "\n";
             summary += getSummaryForKey(key, true);
         }
@@ -123,6 +132,9 @@ public class InputPreferencesFragment extends PreferenceFragment {
         ringCategory.setEnabled(inputEnabled);
         wheelCategory.setEnabled(inputEnabled);
         startInputPreference.setEnabled(inputEnabled);
+        hidrawPreference.setEnabled(inputEnabled);
+        isolatedProcessPreference.setEnabled(inputEnabled);
+        ringModePreference.setEnabled(inputEnabled);
 
         for (int i = 0; i < deviceKeyPreferences.length; i++) {
             int key = ShuttleXpressDevice.KeyCodes.ALL_KEYS[i];
@@ -153,6 +165,9 @@ public class InputPreferencesFragment extends PreferenceFragment {
                 }
 
                 startInputPreference.setEnabled(value);
+                hidrawPreference.setEnabled(value);
+                isolatedProcessPreference.setEnabled(value);
+                ringModePreference.setEnabled(value);
                 defaultsPreference.setEnabled(value);
 
                 buttonCategory.setEnabled(value);
@@ -175,6 +190,32 @@ public class InputPreferencesFragment extends PreferenceFragment {
         });
         screen.addPreference(startInputPreference);
 
+        hidrawPreference = new SwitchPreference(getActivity());
+        hidrawPreference.setTitle(R.string.pref_input_hidraw_title);
+        hidrawPreference.setDefaultValue(false);
+        hidrawPreference.setKey(getString(R.string.pref_input_hidraw_key));
+        hidrawPreference.setSummaryOn(R.string.pref_input_hidraw_summary_on);
+        hidrawPreference.setSummaryOff(R.string.pref_input_hidraw_summary_off);
+        screen.addPreference(hidrawPreference);
+
+        isolatedProcessPreference = new SwitchPreference(getActivity());
+        isolatedProcessPreference.setTitle(R.string.pref_input_isolated_process_title);
+        isolatedProcessPreference.setDefaultValue(false);
+        isolatedProcessPreference.setKey(getString(R.string.pref_input_isolated_process_key));
+        isolatedProcessPreference.setSummaryOn(R.string.pref_input_isolated_process_summary_on);
+        isolatedProcessPreference.setSummaryOff(R.string.pref_input_isolated_process_summary_off);
+        screen.addPreference(isolatedProcessPreference);
+
+        // Summary is automatically updated
+        ringModePreference = new ListPreference(getActivity());
+        ringModePreference.setTitle(R.string.pref_ring_rate_mode_title);
+        ringModePreference.setKey(getString(R.string.pref_ring_rate_mode_key));
+        ringModePreference.setEntries(R.array.pref_ring_rate_mode_entries);
+        ringModePreference.setEntryValues(R.array.pref_ring_rate_mode_values);
+        ringModePreference.setDefaultValue("0");
+        ringModePreference.setSummary(R.string.pref_ring_rate_mode_summary);
+        screen.addPreference(ringModePreference);
+
         defaultsPreference = new Preference(getActivity());
         defaultsPreference.setTitle("Reset to default");
         defaultsPreference.setSummary("Reset all input settings to their original values");
@@ -1,5 +1,6 @@
 package com.freshollie.headunitcontroller.ui.settings.fragments;
 
+import android.Manifest;
 import android.app.AlertDialog;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
@@ -7,6 +8,8 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+import android.os.Build;
 import android.os.Bundle;
 import android.preference.EditTextPreference;
 import android.preference.ListPreference;
@@ -32,8 +35,14 @@ import java.util.Set;
 public class WakeUpPreferencesFragment extends PreferenceFragment {
     private static final String TAG = WakeUpPreferencesFragment.class.getSimpleName();
 
+    private static final String USB_DEVICE_ID_PATTERN = "^[0-9a-fA-F]{1,4}:[0-9a-fA-F]{1,4}$";
+
     private ListPreference maxDevicesPreference;
     private EditTextPreference routineDelayPreference;
+    private EditTextPreference minRoutineDelayPreference;
+    private EditTextPreference maxRoutineDelayPreference;
+    private EditTextPreference gpsDevicePreference;
+    private SwitchPreference launchGpsPreference;
     private SwitchPreference setVolumeSwitchPreference;
     private ListPreference volumeLevelPreference;
     private Preference shellCommandsPreference;
@@ -67,12 +76,24 @@ public class WakeUpPreferencesFragment extends PreferenceFragment {
         routineDelayPreference = (EditTextPreference)
                 findPreference(getString(R.string.pref_wake_up_delay_key));
 
+        minRoutineDelayPreference = (EditTextPreference)
+                findPreference(getString(R.string.pref_min_wake_delay_key));
+
+        maxRoutineDelayPreference = (EditTextPreference)
+                findPreference(getString(R.string.pref_max_wake_delay_key));
+
         setVolumeSwitchPreference = (SwitchPreference)
                 findPreference(getString(R.string.pref_set_volume_key));
 
         volumeLevelPreference = (ListPreference)
                 findPreference(getString(R.string.pref_volume_level_key));
 
+        launchGpsPreference = (SwitchPreference)
+                findPreference(getString(R.string.pref_launch_gps_key));
+
+        gpsDevicePreference = (EditTextPreference)
+                findPreference(getString(R.string.pref_gps_device_key));
+
         shellCommandsPreference = findPreference(getString(R.string.pref_shell_wakeup_commands_key));
 
         bluetoothTetherPreference = findPreference(getString(R.string.pref_bluetooth_tether_address));
@@ -137,6 +158,48 @@ public class WakeUpPreferencesFragment extends PreferenceFragment {
                 }
         );
 
+        setupDelayBoundPreference(minRoutineDelayPreference, R.string.pref_min_wake_delay_summary);
+        setupDelayBoundPreference(maxRoutineDelayPreference, R.string.pref_max_wake_delay_summary);
+
+        // Location is needed to measure how long the GPS takes to get a fix
+        if (launchGpsPreference.isChecked()) {
+            requestLocationPermission();
+        }
+
+        launchGpsPreference.setOnPreferenceChangeListener(
+                new Preference.OnPreferenceChangeListener() {
+                    @Override
+                    public boolean onPreferenceChange(Preference preference, Object o) {
+                        if ((boolean) o) {
+                            requestLocationPermission();
+                        }
+                        return true;
+                    }
+                }
+        );
+
+        updateGpsDeviceSummary(gpsDevicePreference.getText());
+
+        gpsDevicePreference.setOnPreferenceChangeListener(
+                new Preference.OnPreferenceChangeListener() {
+                    @Override
+                    public boolean onPreferenceChange(Preference preference, Object o) {
+                        String deviceId = ((String) o).trim();
+
+                        if (!deviceId.isEmpty() && !deviceId.matches(USB_DEVICE_ID_PATTERN)) {
+                            new AlertDialog.Builder(getActivity())
+                                    .setMessage(R.string.pref_gps_device_invalid)
+                                    .setPositiveButton(android.R.string.ok, null)
+                                    .show();
+                            return false;
+                        }
+
+                        updateGpsDeviceSummary(deviceId);
+                        return true;
+                    }
+                }
+        );
+
         String[] numDevicesValues = new String[101];
 
         for (int i = 0; i < 101; i++) {
@@ -195,6 +258,42 @@ public class WakeUpPreferencesFragment extends PreferenceFragment {
         updateBluetoothTetherSummary();
     }
 
+    private void setupDelayBoundPreference(EditTextPreference preference, final int summaryId) {
+        preference.setSummary(getString(summaryId, preference.getText()));
+
+        preference.setOnPreferenceChangeListener(
+                new Preference.OnPreferenceChangeListener() {
+                    @Override
+                    public boolean onPreferenceChange(Preference preference, Object o) {
+                        if (((String) o).isEmpty()) {
+                            return false;
+                        }
+
+                        preference.setSummary(getString(summaryId, o));
+                        return true;
+                    }
+                }
+        );
+    }
+
+    private void requestLocationPermission() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M &&
+                getActivity().checkSelfPermission(Manifest.permission.ACCESS_FINE_LOCATION)
+                        != PackageManager.PERMISSION_GRANTED) {
+            requestPermissions(new String[] {Manifest.permission.ACCESS_FINE_LOCATION}, 0);
+        }
+    }
+
+    private void updateGpsDeviceSummary(String deviceId) {
+        if (deviceId == null || deviceId.trim().isEmpty()) {
+            gpsDevicePreference.setSummary(R.string.pref_gps_device_summary_not_set);
+        } else {
+            gpsDevicePreference.setSummary(
+                    getString(R.string.pref_gps_device_summary, deviceId.trim())
+            );
+        }
+    }
+
     private void updateBluetoothTetherSummary() {
         String savedAddress =
                 sharedPreferences.getString(
@@ -0,0 +1,120 @@
+package com.freshollie.headunitcontroller.util;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.os.UserManager;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import com.freshollie.headunitcontroller.R;
+import com.freshollie.headunitcontroller.services.input.DeviceKeyMapper;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Mirrors the preferences needed before the user is unlocked into device protected
+ * storage, under the same name as the default preferences. Components given the device
+ * protected context then read the mirror with PreferenceManager as normal.
+ *
+ * Only the wakelock, audio, volume, power settle and input preferences are mirrored, as
+ * device protected storage can be read before the user has unlocked.
+ */
+public class DeviceProtectedPreferences {
+    private static final String TAG = DeviceProtectedPreferences.class.getSimpleName();
+
+    private static final int[] MIRRORED_KEYS = new int[] {
+            R.string.pref_wakelock_key,
+            R.string.pref_blank_audio_key,
+            R.string.pref_set_volume_key,
+            R.string.pref_volume_level_key,
+            R.string.pref_debug_enabled_key,
+            R.string.pref_power_settle_time_key,
+            R.string.pref_usb_power_settle_time_key,
+            R.string.pref_power_on_debug_key,
+            R.string.pref_input_service_enabled_key,
+            R.string.pref_input_hidraw_key,
+            R.string.pref_ring_rate_mode_key,
+            R.string.pref_first_run
+    };
+
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.N;
+    }
+
+    @TargetApi(Build.VERSION_CODES.N)
+    public static boolean isUserUnlocked(Context context) {
+        return !isSupported() ||
+                ((UserManager) context.getSystemService(Context.USER_SERVICE)).isUserUnlocked();
+    }
+
+    /**
+     * @return a context whose default preferences are the mirror
+     */
+    @TargetApi(Build.VERSION_CODES.N)
+    public static Context getContext(Context context) {
+        return context.createDeviceProtectedStorageContext();
+    }
+
+    /**
+     * Copy the mirrored preferences from the default preferences. Must only be called
+     * once the user is unlocked.
+     */
+    public static void mirror(Context context) {
+        if (!isSupported()) {
+            return;
+        }
+
+        List<String> mirroredKeys = Arrays.asList(getMirroredKeys(context));
+        SharedPreferences.Editor editor =
+                PreferenceManager.getDefaultSharedPreferences(getContext(context)).edit().clear();
+
+        int numMirrored = 0;
+        for (Map.Entry<String, ?> preference:
+                PreferenceManager.getDefaultSharedPreferences(context).getAll().entrySet()) {
+            String key = preference.getKey();
+
+            if (!mirroredKeys.contains(key) && !DeviceKeyMapper.isBindingPreference(key)) {
+                continue;
+            }
+
+            Object value = preference.getValue();
+            if (value instanceof Boolean) {
+                editor.putBoolean(key, (Boolean) value);
+            } else if (value instanceof String) {
+                editor.putString(key, (String) value);
+            } else if (value instanceof Integer) {
+                editor.putInt(key, (Integer) value);
+            } else if (value instanceof Long) {
+                editor.putLong(key, (Long) value);
+            } else if (value instanceof Float) {
+                editor.putFloat(key, (Float) value);
+            } else {
+                continue;
+            }
+            numMirrored++;
+        }
+
+        editor.apply();
+        Log.d(TAG, "Mirrored " + numMirrored + " preferences");
+    }
+
+    /**
+     * @return whether a change to this preference needs to be mirrored
+     */
+    public static boolean isMirrored(Context context, String key) {
+        return Arrays.asList(getMirroredKeys(context)).contains(key) ||
+                DeviceKeyMapper.isBindingPreference(key);
+    }
+
+    private static String[] getMirroredKeys(Context context) {
+        String[] keys = new String[MIRRORED_KEYS.length];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = context.getString(MIRRORED_KEYS[i]);
+        }
+        return keys;
+    }
+}
@@ -18,6 +18,7 @@ import com.freshollie.headunitcontroller.SettingsActivity;
 public class NotificationHandler {
     public static int STATUS_NOTIFICATION_ID = 1233234;
     public static int SERVICE_NOTIFICATION_ID = 217234389;
+    public static int EARLY_BOOT_NOTIFICATION_ID = 217234390;
 
     private Context context;
 
@@ -74,6 +75,13 @@ public class NotificationHandler {
         return SERVICE_NOTIFICATION;
     }
 
+    /**
+     * Builds a service notification without showing it or replacing the main service's
+     */
+    public Notification buildServiceNotification(String status) {
+        return notificationBuilder.setContentText(status).build();
+    }
+
     public void notifyStatus(String status) {
         Notification notification = notificationBuilder
                 .setContentText(status)
@@ -1,5 +1,7 @@
 package com.freshollie.headunitcontroller.util;
 
+import android.content.Context;
+import android.os.PowerManager;
 import android.util.Log;
 
 import java.io.BufferedReader;
@@ -17,6 +19,9 @@ public class SuperuserManager {
 
     public static int MAX_THREADS = 10;
 
+    // Longest a command run while suspended keeps the device awake
+    private static final int AWAKE_COMMAND_TIMEOUT = 10000; // Milliseconds
+
     public static String TAG = "SuperuserManager";
 
     private int numThreads = 0;
@@ -36,6 +41,14 @@ public class SuperuserManager {
     }
 
     public boolean execute(final String command) {
+        long traceStart = Tracer.now();
+        boolean success = runCommand(command);
+        Tracer.getInstance().complete("su " + command, traceStart);
+
+        return success;
+    }
+
+    private boolean runCommand(String command) {
         Process process = null;
         try {
             process = Runtime.getRuntime().exec("su -c " + command);
@@ -99,6 +112,39 @@ public class SuperuserManager {
         }
     }
 
+    /**
+     * Like asyncExecute, but keeps the device awake until the command finishes, for
+     * commands run while the device is suspended
+     */
+    public boolean asyncExecuteAwake(Context context, final String command) {
+        final PowerManager.WakeLock wakeLock =
+                ((PowerManager) context.getSystemService(Context.POWER_SERVICE))
+                        .newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
+        wakeLock.acquire(AWAKE_COMMAND_TIMEOUT);
+
+        if (numThreads < MAX_THREADS) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        execute(command);
+                    } finally {
+                        numThreads--;
+                        if (wakeLock.isHeld()) {
+                            wakeLock.release();
+                        }
+                    }
+                }
+            }).start();
+
+            numThreads++;
+            return true;
+        } else {
+            wakeLock.release();
+            return false;
+        }
+    }
+
     public void request(final permissionListener permissionListener) {
 
         new Thread(new Runnable() {
@@ -0,0 +1,246 @@
+package com.freshollie.headunitcontroller.util;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import com.freshollie.headunitcontroller.R;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+
+/**
+ * Records a timeline of each wake and suspend run, and writes it as a Chrome trace event
+ * file which can be opened in chrome://tracing or Perfetto.
+ *
+ * A run is started when a power change has settled, and is closed when the next run
+ * starts or after the run length. Events recorded outside of a run are ignored, so the
+ * tracer costs almost nothing the rest of the time. Only the most recent runs are kept.
+ *
+ * Trace files are numbered with a saved sequence number rather than the time, as head
+ * units without a clock battery boot at a fixed date until they get the time from the
+ * network, which would make new traces look older than the ones they should replace.
+ */
+public class Tracer {
+    private static final String TAG = Tracer.class.getSimpleName();
+
+    private static final String TRACE_DIRECTORY = "traces";
+    private static final String TRACE_PREFIX = "run-";
+    private static final String TRACE_EXTENSION = ".json";
+
+    private static final int RUN_LENGTH = 30000; // Milliseconds
+    private static final int MAX_TRACES = 10;
+
+    private static Tracer INSTANCE = new Tracer();
+
+    private final int pid = Process.myPid();
+
+    private Handler writeThread;
+    private File traceDirectory;
+    private SharedPreferences sharedPreferences;
+    private String sequenceKey;
+
+    private ArrayList<String> events;
+    private HashSet<Integer> namedThreads = new HashSet<>();
+    private String runName;
+    private long runSequence;
+
+    private final Runnable closeRunnable = new Runnable() {
+        @Override
+        public void run() {
+            closeRun();
+        }
+    };
+
+    private Tracer() {
+
+    }
+
+    public static Tracer getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return the current trace time in microseconds, to pass to {@link #complete}
+     */
+    public static long now() {
+        return SystemClock.elapsedRealtimeNanos() / 1000;
+    }
+
+    /**
+     * Start recording a new run, closing any run which is still open
+     */
+    public synchronized void startRun(Context context, String name) {
+        if (writeThread == null) {
+            HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            writeThread = new Handler(thread.getLooper());
+
+            traceDirectory = new File(context.getApplicationContext().getFilesDir(), TRACE_DIRECTORY);
+            sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+            sequenceKey = context.getString(R.string.trace_sequence_key);
+        }
+
+        closeRun();
+
+        events = new ArrayList<>();
+        namedThreads.clear();
+        runName = name;
+        runSequence = sharedPreferences.getLong(sequenceKey, 0) + 1;
+        sharedPreferences.edit().putLong(sequenceKey, runSequence).apply();
+
+        writeThread.postDelayed(closeRunnable, RUN_LENGTH);
+        instant(name);
+    }
+
+    public synchronized boolean isRunning() {
+        return events != null;
+    }
+
+    /**
+     * Record something which happened now
+     */
+    public synchronized void instant(String name) {
+        if (events == null) {
+            return;
+        }
+
+        addEvent("{\"name\":" + quote(name) + ",\"ph\":\"i\",\"s\":\"t\",\"ts\":" + now() +
+                ",\"pid\":" + pid + ",\"tid\":" + currentThread() + "}");
+    }
+
+    /**
+     * Record something which started at the given time, from {@link #now()}, and has
+     * just finished
+     */
+    public synchronized void complete(String name, long startTime) {
+        if (events == null) {
+            return;
+        }
+
+        addEvent("{\"name\":" + quote(name) + ",\"ph\":\"X\",\"ts\":" + startTime +
+                ",\"dur\":" + (now() - startTime) +
+                ",\"pid\":" + pid + ",\"tid\":" + currentThread() + "}");
+    }
+
+    private int currentThread() {
+        int tid = Process.myTid();
+
+        // Name each thread the first time it is seen, so the viewer can label it
+        if (namedThreads.add(tid)) {
+            addEvent("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":" + pid +
+                    ",\"tid\":" + tid +
+                    ",\"args\":{\"name\":" + quote(Thread.currentThread().getName()) + "}}");
+        }
+
+        return tid;
+    }
+
+    private void addEvent(String event) {
+        events.add(event);
+    }
+
+    private synchronized void closeRun() {
+        writeThread.removeCallbacks(closeRunnable);
+
+        if (events == null) {
+            return;
+        }
+
+        final ArrayList<String> runEvents = events;
+        final String fileName = TRACE_PREFIX + String.format(Locale.US, "%010d", runSequence) +
+                "-" + runName.replaceAll("[^A-Za-z0-9_]", "_") + TRACE_EXTENSION;
+        events = null;
+
+        writeThread.post(new Runnable() {
+            @Override
+            public void run() {
+                writeTrace(fileName, runEvents);
+            }
+        });
+    }
+
+    private void writeTrace(String fileName, ArrayList<String> runEvents) {
+        if (!traceDirectory.isDirectory() && !traceDirectory.mkdirs()) {
+            Log.e(TAG, "Could not create " + traceDirectory);
+            return;
+        }
+
+        File traceFile = new File(traceDirectory, fileName);
+
+        FileWriter writer = null;
+        try {
+            writer = new FileWriter(traceFile);
+            writer.write("{\"traceEvents\":[\n");
+
+            for (int i = 0; i < runEvents.size(); i++) {
+                writer.write(runEvents.get(i));
+                writer.write(i < runEvents.size() - 1 ? ",\n" : "\n");
+            }
+
+            writer.write("]}\n");
+            Log.d(TAG, "Wrote " + runEvents.size() + " events to " + traceFile);
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing " + traceFile, e);
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        deleteOldTraces();
+    }
+
+    private void deleteOldTraces() {
+        String[] traces = traceDirectory.list();
+        if (traces == null || traces.length <= MAX_TRACES) {
+            return;
+        }
+
+        // Names start with the zero padded sequence number, so the oldest sort first
+        Arrays.sort(traces);
+
+        for (int i = 0; i < traces.length - MAX_TRACES; i++) {
+            if (!new File(traceDirectory, traces[i]).delete()) {
+                Log.e(TAG, "Could not delete " + traces[i]);
+            }
+        }
+    }
+
+    private static String quote(String value) {
+        StringBuilder quoted = new StringBuilder("\"");
+
+        for (char c: value.toCharArray()) {
+            switch (c) {
+                case '"':
+                    quoted.append("\\\"");
+                    break;
+                case '\\':
+                    quoted.append("\\\\");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        quoted.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        quoted.append(c);
+                    }
+            }
+        }
+
+        return quoted.append('"').toString();
+    }
+}
@@ -0,0 +1,175 @@
+package com.freshollie.headunitcontroller.services.input;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.freshollie.headunitcontroller.services.input.ShuttleXpressReportDecoder.*;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Runs the decoder against report streams from the fixtures in shuttle_reports. Each
+ * fixture line is one 5 byte report in hex, and lines starting with # are comments.
+ */
+public class ShuttleXpressReportDecoderTest {
+    private final List<String> events = new ArrayList<>();
+    private ShuttleXpressReportDecoder decoder;
+
+    @Before
+    public void setUp() {
+        decoder = new ShuttleXpressReportDecoder(new InputSource.KeyListener() {
+            @Override
+            public void onDown(int key) {
+                events.add("down " + key);
+            }
+
+            @Override
+            public void onUp(int key) {
+                events.add("up " + key);
+            }
+
+            @Override
+            public void onRingPosition(int position) {
+                events.add("ring " + position);
+            }
+        });
+    }
+
+    private static byte[] loadReports(String name) throws IOException {
+        InputStream inputStream = ShuttleXpressReportDecoderTest.class
+                .getResourceAsStream("/shuttle_reports/" + name);
+        ByteArrayOutputStream reports = new ByteArrayOutputStream();
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+
+                for (String value: line.split("\\s+")) {
+                    reports.write(Integer.parseInt(value, 16));
+                }
+            }
+        }
+
+        return reports.toByteArray();
+    }
+
+    private void decode(String name) throws IOException {
+        byte[] reports = loadReports(name);
+        decoder.decodeStream(reports, reports.length);
+    }
+
+    private static List<String> press(int key) {
+        return Arrays.asList("down " + key, "up " + key);
+    }
+
+    @Test
+    public void wheelClicksClockwise() throws IOException {
+        decode("wheel_clockwise.hex");
+
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            expected.addAll(press(KEY_WHEEL_RIGHT));
+        }
+        assertEquals(expected, events);
+    }
+
+    @Test
+    public void wheelCounterWraps() throws IOException {
+        decode("wheel_wrap.hex");
+
+        List<String> expected = new ArrayList<>();
+        expected.addAll(press(KEY_WHEEL_RIGHT));
+        expected.addAll(press(KEY_WHEEL_LEFT));
+        expected.addAll(press(KEY_WHEEL_LEFT));
+        assertEquals(expected, events);
+    }
+
+    @Test
+    public void firstReportAfterResetOnlySetsTheWheelCounter() throws IOException {
+        decode("wheel_clockwise.hex");
+        events.clear();
+
+        decoder.reset();
+        byte[] reports = loadReports("wheel_wrap.hex");
+        decoder.decode(reports, 0);
+
+        assertEquals(new ArrayList<String>(), events);
+    }
+
+    @Test
+    public void buttonsPressAndRelease() throws IOException {
+        decode("buttons.hex");
+
+        assertEquals(
+                Arrays.asList(
+                        "down " + KEY_BUTTON_1,
+                        "down " + KEY_BUTTON_5,
+                        "up " + KEY_BUTTON_1,
+                        "up " + KEY_BUTTON_5
+                ),
+                events
+        );
+        assertEquals(0, decoder.getButtonMask());
+    }
+
+    @Test
+    public void ringTurnedAndLetGo() throws IOException {
+        decode("ring_left_release.hex");
+
+        assertEquals(
+                Arrays.asList(
+                        "ring -1",
+                        "down " + KEY_RING_LEFT,
+                        "ring -4",
+                        "ring -7",
+                        "ring -3",
+                        "ring 0",
+                        "up " + KEY_RING_LEFT,
+                        "down " + KEY_RING_MIDDLE,
+                        "up " + KEY_RING_MIDDLE
+                ),
+                events
+        );
+        assertEquals(0, decoder.getRingPosition());
+    }
+
+    @Test
+    public void ringSwungAcrossTheMiddle() throws IOException {
+        decode("ring_swing.hex");
+
+        assertEquals(
+                Arrays.asList(
+                        "ring -2",
+                        "down " + KEY_RING_LEFT,
+                        "ring 3",
+                        "up " + KEY_RING_LEFT,
+                        "down " + KEY_RING_RIGHT
+                ),
+                events
+        );
+    }
+
+    @Test
+    public void partialReportAtTheEndOfAStreamIsIgnored() throws IOException {
+        byte[] reports = loadReports("wheel_clockwise.hex");
+        decoder.decodeStream(reports, reports.length - 1);
+
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            expected.addAll(press(KEY_WHEEL_RIGHT));
+        }
+        assertEquals(expected, events);
+    }
+}